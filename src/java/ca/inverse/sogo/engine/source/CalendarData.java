@@ -17,6 +17,8 @@
 package ca.inverse.sogo.engine.source;
 
 import com.funambol.common.pim.calendar.Calendar;
+import com.funambol.common.pim.calendar.CalendarContent;
+import com.funambol.common.pim.common.Property;
 import com.funambol.common.pim.converter.ConverterException;
 import com.funambol.common.pim.converter.VCalendarConverter;
 import com.funambol.common.pim.converter.VComponentWriter;
@@ -50,6 +52,12 @@ public class CalendarData {
     /** Calendar data as iCalendar string. */
     private String content;
 
+    /** Time zone used for conversions. */
+    private TimeZone tz;
+
+    /** Character set used for conversions. */
+    private String charset;
+
     /**
      * Create a new empty instance.
      */
@@ -73,6 +81,9 @@ public class CalendarData {
         ICalendarParser parser;
         VCalendarConverter converter;
 
+        this.tz = tz;
+        this.charset = charset;
+
         content = SOGoSanitizer.sanitizevCalendarInput(item.getContent(), item.getKey().getKeyAsString(), log);
 
         parser = new ICalendarParser(new ByteArrayInputStream(content.getBytes()));
@@ -151,6 +162,52 @@ public class CalendarData {
         return v2;
     }
 
+    /**
+     * Remove the sync tag from the summary of the calendar data. This works on the
+     * already-parsed Calendar object so that the content doesn't need to be parsed
+     * again; <code>vcalendar</code> and <code>content</code> are regenerated from it.
+     * If this fails, the calendar data is left untouched.
+     *
+     * @param tag The tag to remove, without brackets
+     */
+    public void removeTag(String tag) {
+        VCalendarConverter converter;
+        VComponentWriter writer;
+        VCalendar original_vcalendar;
+        CalendarContent cc;
+        Property original;
+        String summary;
+
+        cc = calendar.getCalendarContent();
+        original = cc.getSummary();
+        original_vcalendar = vcalendar;
+
+        try {
+            summary = (original != null ? original.getPropertyValueAsString() : null);
+
+            if (summary == null)
+                return;
+
+            tag = ("[" + tag + "]").toLowerCase();
+            if (summary.toLowerCase().startsWith(tag)) {
+                // The tag is followed by a space, unless nothing follows it
+                summary = (summary.length() > tag.length() ? summary.substring(tag.length()+1) : "");
+            }
+
+            cc.setSummary(new Property(summary));
+
+            converter = new VCalendarConverter(tz, charset, true);
+            vcalendar = converter.calendar2vcalendar(calendar, true);
+
+            writer = new VComponentWriter(VComponentWriter.NO_FOLDING);
+            content = writer.toString(vcalendar);
+        } catch (Exception e) {
+            log.error("Exception occured in removeTag: " + e.toString(), e);
+            cc.setSummary(original);
+            vcalendar = original_vcalendar;
+        }
+    }
+
     /**
      * Get calendar data as Funambol Calendar object.
      *
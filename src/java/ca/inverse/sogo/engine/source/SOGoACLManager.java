@@ -21,6 +21,9 @@ package ca.inverse.sogo.engine.source;
 
 import java.sql.ResultSet;
 import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.funambol.framework.engine.SyncItem;
 import com.funambol.framework.engine.source.SyncContext;
@@ -58,6 +61,8 @@ public class SOGoACLManager {
 	 * 
 	 *  value is structured like this:  sogo1:Calendar/2230-4A609280-1-3C4950E0
 	 * 
+	 * The roles of the user on the collection are read once per sync
+	 * session - the ACL for each classification is derived from them.
 	 */
 	public static int getACL(SOGoSyncSource source, SyncContext context, FunambolLogger log, String location, String value, int classification) {
 		int acl;
@@ -66,8 +71,7 @@ public class SOGoACLManager {
 		
 		try {
 			String c_uid, c_object, role;
-			PreparedStatement s;
-			ResultSet rs;
+			List<String> roles;
 			int i;
 			
 			i = value.indexOf(':');
@@ -80,16 +84,15 @@ public class SOGoACLManager {
 			c_object = '/' + c_uid + '/' + value.substring(i+1);
 			location = location + "_acl";
 			
-			s = source.getDBConnection().prepareStatement("SELECT c_role FROM " + location + " WHERE c_uid = ? AND c_object = ?");
-			s.setString(1, context.getPrincipal().getUsername());
-			s.setString(2, c_object);
-			rs = s.executeQuery();
+			roles = source.getACLRoles(location + " " + c_object);
 			
-			log.info("Looking up roles for " + context.getPrincipal().getUsername() + " object: " + c_object + " tablename: " + location);
+			if (roles == null) {
+				roles = getRoles(source, context.getPrincipal().getUsername(), c_object, location, log);
+				source.setACLRoles(location + " " + c_object, roles);
+			}
 			
-			while (rs.next()) {
-				role = rs.getString(1);
-				log.info("Found role: " + role);
+			for (i = 0; i < roles.size(); i++) {
+				role = roles.get(i);
 				if (role.equalsIgnoreCase("None")) {
 					acl = SOGoACLNone;
 					break;
@@ -106,9 +109,6 @@ public class SOGoACLManager {
 					acl = acl | getSubRole(role, SOGoACLConfidential);
 			}
 			
-			rs.close();
-			s.close();
-			
 		} catch (Exception e) {
 			log.error("Exception occured in getACL(): " + e.toString(), e);
 		}
@@ -116,6 +116,41 @@ public class SOGoACLManager {
 		return acl;
 	}
 	
+	/**
+	 * 
+	 * @param source
+	 * @param c_uid
+	 * @param c_object
+	 * @param location the ACL table
+	 * @param log
+	 * @return the roles of the user on the object
+	 * @throws SQLException
+	 */
+	private static List<String> getRoles(SOGoSyncSource source, String c_uid, String c_object, String location, FunambolLogger log) throws SQLException {
+		ArrayList<String> roles;
+		PreparedStatement s;
+		ResultSet rs;
+		
+		roles = new ArrayList<String>();
+		
+		s = source.prepareStatement(SOGoStatementCache.SELECT_ROLES, location);
+		s.setString(1, c_uid);
+		s.setString(2, c_object);
+		rs = s.executeQuery();
+		
+		log.info("Looking up roles for " + c_uid + " object: " + c_object + " tablename: " + location);
+		
+		while (rs.next()) {
+			roles.add(rs.getString(1));
+		}
+		
+		rs.close();
+		
+		log.info("Found roles: " + roles);
+		
+		return roles;
+	}
+	
 	/**
 	 * 
 	 * @param s
@@ -149,37 +184,39 @@ public class SOGoACLManager {
 	 * @return
 	 */
 	public static int getRoleFromClassification(SyncItem item, SOGoSyncSource source, SyncContext context, FunambolLogger log, String location) {
+		Integer classification;
+		String key;
 		int role;
 		
 		role = SOGoACLNone;
+		key = SOGoKey.encodeString((String)item.getKey().getKeyValue());
+		
+		// We use the classification read along with the content of the item, if any
+		classification = source.takeClassification(location, key);
+		
+		if (classification != null) {
+			role = getRoleForClassification(classification.intValue());
+			log.info("Classification already known for key: " + key + " in location: " + location + ", returned role: " + role);
+			return role;
+		}
 		
-		log.info("Getting classification for key: " + SOGoKey.encodeString((String)item.getKey().getKeyValue()) + " in location: " + location);
+		log.info("Getting classification for key: " + key + " in location: " + location);
 		try {
 			PreparedStatement s;
 			ResultSet rs;
 			
-			s = source.getDBConnection().prepareStatement("SELECT c_classification FROM " + location + "_quick WHERE c_name = ?");
-			s.setString(1, SOGoKey.encodeString((String)item.getKey().getKeyValue()));
+			s = source.prepareStatement(SOGoStatementCache.SELECT_CLASSIFICATION, location + "_quick");
+			s.setString(1, key);
 			rs = s.executeQuery();
 
-			// 0 -> public
-			// 1 -> private
-			// 2 -> confidential
 			if (rs.next()) {
-				if (rs.getInt(1) == 1)
-					role = SOGoACLPrivate;
-				else if (rs.getInt(1) == 2)
-					role = SOGoACLConfidential;
-				else	
-					role = SOGoACLPublic;
-				
+				role = getRoleForClassification(rs.getInt(1));
 				log.info("Item found, returned role: " + role);
 			} else {
 				log.info("Item not found in getRoleFromClassification()");
 			}
 			
 			rs.close();
-			s.close();
 			
 		} catch (Exception e) {
 			log.error("Exception occured in getRoleFromClassification(): " + e.toString(), e);
@@ -187,4 +224,21 @@ public class SOGoACLManager {
 		
 		return role;
 	}
+	
+	/**
+	 * 
+	 * @param classification the c_classification of the item
+	 * @return
+	 */
+	private static int getRoleForClassification(int classification) {
+		// 0 -> public
+		// 1 -> private
+		// 2 -> confidential
+		if (classification == 1)
+			return SOGoACLPrivate;
+		else if (classification == 2)
+			return SOGoACLConfidential;
+		
+		return SOGoACLPublic;
+	}
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small thread-safe cache with a maximum number of entries and a
+ * time-to-live. When full, the least recently used entry is dropped.
+ */
+public class SOGoCache<K, V> {
+
+	// Private ivars
+	private LinkedHashMap<K, Entry<V>> _entries;
+	private long _ttl;
+	private long _hits;
+	private long _misses;
+
+	/**
+	 * A cached value and the time at which it expires.
+	 */
+	private static class Entry<V> {
+		V value;
+		long expires;
+
+		Entry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 *
+	 * @param size the maximum number of entries
+	 * @param ttl the time-to-live of entries, in milliseconds
+	 */
+	public SOGoCache(final int size, long ttl) {
+		_ttl = ttl;
+		_entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return the cached value, or null if absent or expired
+	 */
+	public synchronized V get(K key) {
+		Entry<V> entry;
+
+		entry = _entries.get(key);
+
+		if (entry == null) {
+			_misses++;
+			return null;
+		}
+
+		if (entry.expires < System.currentTimeMillis()) {
+			_entries.remove(key);
+			_misses++;
+			return null;
+		}
+
+		_hits++;
+		return entry.value;
+	}
+
+	/**
+	 *
+	 * @param key
+	 * @return true if a non-expired entry exists for key, even if its value is null
+	 */
+	public synchronized boolean containsKey(K key) {
+		Entry<V> entry;
+
+		entry = _entries.get(key);
+
+		return (entry != null && entry.expires >= System.currentTimeMillis());
+	}
+
+	public synchronized void put(K key, V value) {
+		put(key, value, _ttl);
+	}
+
+	public synchronized void put(K key, V value, long ttl) {
+		_entries.put(key, new Entry<V>(value, System.currentTimeMillis() + ttl));
+	}
+
+	public synchronized void remove(K key) {
+		_entries.remove(key);
+	}
+
+	public synchronized void clear() {
+		_entries.clear();
+	}
+
+	public synchronized int size() {
+		return _entries.size();
+	}
+
+	public synchronized String toString() {
+		return "entries: " + _entries.size() + " hits: " + _hits + " misses: " + _misses;
+	}
+}
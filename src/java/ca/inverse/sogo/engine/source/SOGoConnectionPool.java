@@ -0,0 +1,406 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import com.funambol.framework.logging.FunambolLogger;
+
+/**
+ * This class implements a bounded pool of JDBC connections to the SOGo
+ * database. Pools are shared by all sync sources and are keyed by the
+ * database URL and username of the sync source configuration.
+ *
+ * Pools don't keep a reference to the sync sources - connections are opened
+ * using the configuration of the sync source borrowing them. Idle connections
+ * opened with another password than the current one are closed.
+ *
+ * Idle connections are validated before being handed out again and are
+ * closed once they've been idle for too long. If all connections are in
+ * use, callers wait up to the configured delay for one to be released.
+ */
+public class SOGoConnectionPool {
+
+	// Default values, used when nothing is specified in the sync source
+	public static final int DEFAULT_MAX_CONNECTIONS = 20;
+	public static final long DEFAULT_MAX_WAIT = 10000;
+	public static final long DEFAULT_MAX_IDLE_TIME = 300000;
+
+	// Idle connections are validated with a query if they weren't used for that long
+	private static final long VALIDATION_INTERVAL = 30000;
+
+	// All our pools, keyed by "url username"
+	private static HashMap<String, SOGoConnectionPool> _pools = new HashMap<String, SOGoConnectionPool>();
+
+	// Private ivars
+	private LinkedList<IdleConnection> _idle;
+	private String _validation_query;
+	private String _name;
+	private int _max_connections;
+	private long _max_wait;
+	private long _max_idle_time;
+	private int _active;
+
+	// Metrics
+	private long _created;
+	private long _destroyed;
+	private long _borrowed;
+	private long _released;
+	private long _waited;
+	private long _timeouts;
+	private long _validation_failures;
+
+	/**
+	 * An idle connection, the time at which it was released and
+	 * the hash of the password it was opened with.
+	 */
+	private static class IdleConnection {
+		Connection connection;
+		long since;
+		String credentials;
+
+		IdleConnection(Connection connection, long since, String credentials) {
+			this.connection = connection;
+			this.since = since;
+			this.credentials = credentials;
+		}
+	}
+
+	private SOGoConnectionPool(SOGoSyncSource source) {
+		String url;
+
+		url = source.getDatabaseURL();
+
+		_idle = new LinkedList<IdleConnection>();
+		_name = source.getDatabaseUsername() + "@" + url;
+		_max_connections = (source.getMaxConnections() > 0 ? source.getMaxConnections() : DEFAULT_MAX_CONNECTIONS);
+		_max_wait = (source.getConnectionMaxWait() >= 0 ? source.getConnectionMaxWait() : DEFAULT_MAX_WAIT);
+		_max_idle_time = (source.getConnectionMaxIdleTime() > 0 ? source.getConnectionMaxIdleTime() : DEFAULT_MAX_IDLE_TIME);
+
+		if (url != null && url.toLowerCase().startsWith("jdbc:oracle:"))
+			_validation_query = "SELECT 1 FROM DUAL";
+		else
+			_validation_query = "SELECT 1";
+	}
+
+	/**
+	 * Returns the pool associated with the database configuration
+	 * of the sync source. The pool is created if needed, using the
+	 * settings of the first sync source asking for it.
+	 *
+	 * @param source
+	 * @return
+	 */
+	public static SOGoConnectionPool getPool(SOGoSyncSource source) {
+		SOGoConnectionPool pool;
+		String key;
+
+		key = source.getDatabaseURL() + " " + source.getDatabaseUsername();
+
+		synchronized (_pools) {
+			pool = _pools.get(key);
+
+			if (pool == null) {
+				pool = new SOGoConnectionPool(source);
+				_pools.put(key, pool);
+			}
+		}
+
+		return pool;
+	}
+
+	/**
+	 * Borrows a connection from the pool associated with the sync source.
+	 *
+	 * @param source
+	 * @param log
+	 * @return the connection, or null if none could be obtained
+	 */
+	public static Connection getConnection(SOGoSyncSource source, FunambolLogger log) {
+		return getPool(source).borrow(source, log);
+	}
+
+	/**
+	 * Gives back a connection previously obtained with getConnection().
+	 *
+	 * @param source
+	 * @param connection
+	 * @param log
+	 */
+	public static void releaseConnection(SOGoSyncSource source, Connection connection, FunambolLogger log) {
+		getPool(source).release(source, connection, log);
+	}
+
+	/**
+	 *
+	 * @param source the sync source borrowing the connection
+	 * @param log
+	 * @return
+	 */
+	public Connection borrow(SOGoSyncSource source, FunambolLogger log) {
+		String credentials;
+		Connection con;
+		long deadline, now;
+		boolean waited;
+
+		credentials = getCredentials(source);
+		deadline = System.currentTimeMillis() + _max_wait;
+		waited = false;
+
+		while (true) {
+			IdleConnection idle;
+
+			idle = null;
+
+			synchronized (this) {
+				now = System.currentTimeMillis();
+				evictIdleConnections(now, credentials, log);
+
+				if (_idle.size() > 0) {
+					// We reuse the most recently released connection so the
+					// less used ones get evicted.
+					idle = _idle.removeLast();
+					_active++;
+				} else if (_active < _max_connections) {
+					_active++;
+				} else {
+					if (now >= deadline) {
+						_timeouts++;
+						log.error("Timed out waiting for a database connection from pool " + _name + " - " + this.toString());
+						return null;
+					}
+
+					if (!waited) {
+						_waited++;
+						waited = true;
+					}
+
+					try {
+						this.wait(deadline - now);
+					} catch (InterruptedException e) {
+						log.error("Interrupted while waiting for a database connection from pool " + _name);
+						return null;
+					}
+					continue;
+				}
+			}
+
+			// We validate or create our connection outside the lock, as
+			// both operations require a round-trip to the database server.
+			if (idle != null) {
+				if (isValid(idle, now, log)) {
+					con = idle.connection;
+
+					synchronized (this) {
+						_borrowed++;
+					}
+					return con;
+				}
+
+				destroy(idle.connection, log);
+
+				synchronized (this) {
+					_validation_failures++;
+					_active--;
+				}
+				continue;
+			}
+
+			con = SOGoUtilities.initDatabaseDriver(source, log);
+
+			synchronized (this) {
+				if (con == null) {
+					_active--;
+					this.notifyAll();
+				} else {
+					_created++;
+					_borrowed++;
+				}
+			}
+
+			if (con != null)
+				log.info("Opened a new database connection for pool " + _name);
+
+			return con;
+		}
+	}
+
+	/**
+	 *
+	 * @param source the sync source which borrowed the connection
+	 * @param con
+	 * @param log
+	 */
+	public void release(SOGoSyncSource source, Connection con, FunambolLogger log) {
+		boolean reusable;
+
+		if (con == null)
+			return;
+
+		// We discard anything that wasn't committed so the
+		// next user of the connection starts from a clean state.
+		try {
+			reusable = !con.isClosed();
+
+			if (reusable)
+				con.rollback();
+		} catch (SQLException e) {
+			log.info("Couldn't reset the database connection, discarding it: " + e.toString());
+			reusable = false;
+		}
+
+		if (!reusable)
+			destroy(con, log);
+
+		synchronized (this) {
+			_active--;
+			_released++;
+
+			if (reusable)
+				_idle.addLast(new IdleConnection(con, System.currentTimeMillis(), getCredentials(source)));
+
+			this.notifyAll();
+		}
+	}
+
+	/**
+	 * Closes the connections idle for too long and the ones opened with
+	 * other credentials. Must be called with the lock held.
+	 */
+	private void evictIdleConnections(long now, String credentials, FunambolLogger log) {
+		Iterator<IdleConnection> it;
+		IdleConnection idle;
+
+		it = _idle.iterator();
+
+		while (it.hasNext()) {
+			idle = it.next();
+
+			if (now - idle.since < _max_idle_time && idle.credentials.equals(credentials))
+				continue;
+
+			it.remove();
+			destroy(idle.connection, log);
+			log.info("Closed an idle database connection from pool " + _name);
+		}
+	}
+
+	/**
+	 * We only keep a hash of the password, to know if it has changed.
+	 */
+	private static String getCredentials(SOGoSyncSource source) {
+		StringBuffer buf;
+		MessageDigest md;
+		byte[] digest;
+		int i;
+
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+			digest = md.digest(String.valueOf(source.getDatabasePassword()).getBytes("UTF-8"));
+		} catch (Exception e) {
+			// SHA-256 and UTF-8 are always available
+			throw new IllegalStateException(e.toString());
+		}
+
+		buf = new StringBuffer(digest.length * 2);
+
+		for (i = 0; i < digest.length; i++) {
+			buf.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			buf.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+
+		return buf.toString();
+	}
+
+	private boolean isValid(IdleConnection idle, long now, FunambolLogger log) {
+		try {
+			Statement s;
+
+			if (idle.connection.isClosed())
+				return false;
+
+			if (now - idle.since < VALIDATION_INTERVAL)
+				return true;
+
+			s = idle.connection.createStatement();
+			s.executeQuery(_validation_query).close();
+			s.close();
+
+			// Our validation query has opened a transaction on some databases
+			idle.connection.rollback();
+
+			return true;
+		} catch (SQLException e) {
+			log.info("Database connection from pool " + _name + " is no longer valid: " + e.toString());
+		}
+
+		return false;
+	}
+
+	private void destroy(Connection con, FunambolLogger log) {
+		try {
+			con.close();
+		} catch (SQLException e) {
+			log.info("Couldn't close the database connection: " + e.toString());
+		}
+
+		synchronized (this) {
+			_destroyed++;
+		}
+	}
+
+	public synchronized int getActiveCount() {
+		return _active;
+	}
+
+	public synchronized int getIdleCount() {
+		return _idle.size();
+	}
+
+	public synchronized long getCreatedCount() {
+		return _created;
+	}
+
+	public synchronized long getBorrowedCount() {
+		return _borrowed;
+	}
+
+	public synchronized long getTimeoutCount() {
+		return _timeouts;
+	}
+
+	public synchronized String toString() {
+		return "active: " + _active + "/" + _max_connections +
+			" idle: " + _idle.size() +
+			" created: " + _created +
+			" destroyed: " + _destroyed +
+			" borrowed: " + _borrowed +
+			" released: " + _released +
+			" waited: " + _waited +
+			" timeouts: " + _timeouts +
+			" validation failures: " + _validation_failures;
+	}
+}
@@ -47,7 +47,7 @@ public class SOGoContactUtilities {
 	public static SyncItem addvCardSyncItem(SyncItem item, SOGoSyncSource source, SyncContext context, FunambolLogger log) {
 		try {
 			String c_name, c_givenname, c_cn, c_sn, c_o, c_ou, c_telephonenumber, c_mail, c_l, c_content;
-			PreparedStatement s;
+			SOGoWriteBatch.Unit unit;
 			Contact c;
 		
 			long timestamp;
@@ -84,32 +84,31 @@ public class SOGoContactUtilities {
             timestamp = item.getTimestamp().getTime() / 1000;
 
 			// We insert into our normal table
-			s = source.getDBConnection().prepareStatement("INSERT INTO " + source.getContactTable() + " (c_name, c_content, c_creationdate, c_lastmodified, c_version) VALUES (?,?,?,?,?)");
-			s.setString(1, c_name);
-			s.setString(2, c_content);
-			s.setLong(3, timestamp);
-			s.setLong(4, timestamp);
-			s.setInt(5, 0);
-			s.executeUpdate();
-			s.close();
+			unit = new SOGoWriteBatch.Unit(c_name);
+			unit.add(SOGoStatementCache.INSERT_CONTENT, source.getContactTable(),
+					c_name,
+					c_content,
+					Long.valueOf(timestamp),
+					Long.valueOf(timestamp),
+					Integer.valueOf(0));
 			
 			// We insert into our quick table
 			// FIXME: decode screenname
-			s = source.getDBConnection().prepareStatement("INSERT INTO " + source.getContactQuickTable() + " (c_name, c_givenname, c_cn, c_sn, c_o, c_ou, c_telephonenumber, c_mail, c_l, c_component) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-			s.setString(1, c_name);
-			s.setString(2, c_givenname);
-			s.setString(3, c_cn);
-			s.setString(4, c_sn);
-			s.setString(5, c_o);
-			s.setString(6, c_ou);
-			s.setString(7, c_telephonenumber);
-			s.setString(8, c_mail);
-			s.setString(9, c_l);
-			s.setString(10, "vcard");
-			s.executeUpdate();
-			s.close();
+			unit.add(SOGoStatementCache.INSERT_CONTACT_QUICK, source.getContactQuickTable(),
+					c_name,
+					c_givenname,
+					c_cn,
+					c_sn,
+					c_o,
+					c_ou,
+					c_telephonenumber,
+					c_mail,
+					c_l,
+					"vcard");
 			
-			source.getDBConnection().commit();
+			source.queueWrite(unit);
+			source.setItemLocation(c_name, source.getContactTable());
+			source.updateContactTwin(c_name, c_cn, c_mail, c_o);
 			
 			item.setState(SyncItemState.SYNCHRONIZED);
 		} catch (Exception e) {
@@ -130,8 +129,9 @@ public class SOGoContactUtilities {
 	 */
 	public static SyncItem updatevCardSyncItem(SyncItem item, SOGoSyncSource source, SyncContext context, FunambolLogger log) {
 		try {
-			String c_name, c_givenname, c_cn, c_sn, c_o, c_ou, c_telephonenumber, c_mail, c_l, c_content;
+			String c_name, c_givenname, c_cn, c_sn, c_o, c_ou, c_telephonenumber, c_mail, c_l, c_content, stored;
 			PreparedStatement s;
+			SOGoWriteBatch.Unit unit;
 			Contact c;
 			
 			boolean doMerge = true;
@@ -157,6 +157,7 @@ public class SOGoContactUtilities {
 
 			c_name = SOGoKey.encodeString(item.getKey().getKeyAsString());
 			c_content = SOGoSanitizer.sanitizevCardOutput(item.getContent(), c, context, log);
+			stored = null;
 			
 			// We do merge contacts but we convert the one coming from the database
 			// to v2.1 prior the merge otherwise Funambol can't parse it.
@@ -165,7 +166,7 @@ public class SOGoContactUtilities {
 				String merged_content;
 				ResultSet rs;
 
-				s = source.getDBConnection().prepareStatement("SELECT c_content FROM " + source.getContactTable() + " WHERE c_name = ?");
+				s = source.prepareStatement(SOGoStatementCache.SELECT_CONTENT, source.getContactTable());
 				s.setString(1, c_name);
 				rs = s.executeQuery();
 				
@@ -178,7 +179,8 @@ public class SOGoContactUtilities {
 					
 					//log.info("Merging original contact: " + rs.getString(1) + " with: " + c_content);
 
-					p = new VcardParser(new ByteArrayInputStream(SOGoUtilities.vCardV3toV21(rs.getString(1).getBytes(), source, context, log)), null, null);
+					stored = rs.getString(1);
+					p = new VcardParser(new ByteArrayInputStream(SOGoUtilities.vCardV3toV21(stored.getBytes(), source, context, log)), null, null);
 					originalContact = p.vCard();
 					
 					c.merge(originalContact);					
@@ -186,6 +188,8 @@ public class SOGoContactUtilities {
 					merged_content = conv.convert(c);
 				}
 
+				rs.close();
+
 				if (originalContact != null) {
 					c_content = merged_content;
 				}
@@ -195,32 +199,35 @@ public class SOGoContactUtilities {
 				
 			} // if (doMerge) ...
 			
-			// We insert into our normal table
-			s = source.getDBConnection().prepareStatement("UPDATE " + source.getContactTable() + " SET c_content = ?, c_lastmodified = ? WHERE c_name = ?");
-			s.setString(1, c_content); 		                           // c_content
-			s.setLong(2, item.getTimestamp().getTime() / 1000);        // c_lastmodified
-			s.setString(3, c_name);									   // c_name
-			s.executeUpdate();
-			s.close();
-						
-			// We insert into our quick table
-			// FIXME: decode screenname
-			s = source.getDBConnection().prepareStatement("UPDATE " + source.getContactQuickTable() + " SET c_givenname = ?, c_cn = ?, c_sn = ?, c_o = ?, c_ou = ?, c_telephonenumber = ?, c_mail = ?, c_l = ? WHERE c_name = ?");
-			s.setString(1, c_givenname);
-			s.setString(2, c_cn);
-			s.setString(3, c_sn);
-			s.setString(4, c_o);
-			s.setString(5, c_ou);
-			s.setString(6, c_telephonenumber);
-			s.setString(7, c_mail);
-			s.setString(8, c_l);
-			s.setString(9, c_name);
-			s.executeUpdate();
-			s.close();
-			
-			SOGoUtilities.updateContentVersion(source.getDBConnection(), source.getContactTable(), c_name);
+			// We don't write anything if the contact hasn't changed, so that
+			// its version - and the ETag SOGo gives to its clients - stay the same
+			if (SOGoFingerprint.isUnchanged(stored, c_content)) {
+				source.skipWrite(c_name);
+			} else {
+				// We insert into our normal table
+				unit = new SOGoWriteBatch.Unit(c_name);
+				unit.add(SOGoStatementCache.UPDATE_CONTENT, source.getContactTable(),
+						c_content,											// c_content
+						Long.valueOf(item.getTimestamp().getTime() / 1000),	// c_lastmodified
+						c_name);											// c_name
+				
+				// We insert into our quick table
+				// FIXME: decode screenname
+				unit.add(SOGoStatementCache.UPDATE_CONTACT_QUICK, source.getContactQuickTable(),
+						c_givenname,
+						c_cn,
+						c_sn,
+						c_o,
+						c_ou,
+						c_telephonenumber,
+						c_mail,
+						c_l,
+						c_name);
+				
+				source.queueWrite(unit);
+			}
 			
-			source.getDBConnection().commit();
+			source.updateContactTwin(c_name, c_cn, c_mail, c_o);
 			
 			item.setState(SyncItemState.UPDATED);
 		} catch (Exception e) {
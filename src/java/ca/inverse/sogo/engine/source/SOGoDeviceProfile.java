@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.util.HashSet;
+import java.util.List;
+
+import com.funambol.framework.core.DataStore;
+import com.funambol.framework.core.DevInf;
+import com.funambol.framework.engine.source.SyncContext;
+import com.funambol.framework.server.Capabilities;
+import com.funambol.framework.server.Sync4jDevice;
+
+/**
+ * This class holds what we need to know about a device to convert items
+ * for it - the preferred item types for each sync source type, the quirks
+ * of the device, its charset and its time zone.
+ *
+ * Profiles are immutable and are cached process-wide, keyed by device id.
+ * A cached profile is only reused if the capabilities, charset and time
+ * zone of the device are the ones it was computed from, so that a device
+ * sending a new devinf gets a new profile.
+ */
+public class SOGoDeviceProfile {
+
+	// Cache settings
+	private static final int CACHE_SIZE = 1000;
+	private static final long CACHE_TTL = 3600000;
+
+	// Indexes in the arrays of preferred types
+	private static final int CONTACT = 0;
+	private static final int EVENT = 1;
+	private static final int TODO = 2;
+	private static final int OTHER = 3;
+
+	// All cached profiles, keyed by device id
+	private static SOGoCache<String, SOGoDeviceProfile> _profiles = new SOGoCache<String, SOGoDeviceProfile>(CACHE_SIZE, CACHE_TTL);
+
+	// Private ivars
+	private String _device_id;
+	private String _signature;
+	private int[] _rx_types;
+	private int[] _tx_types;
+	private boolean _iphone;
+	private boolean _blackberry;
+	private boolean _utc;
+	private String _charset;
+	private String _timezone;
+
+	private SOGoDeviceProfile(Sync4jDevice device, String signature) {
+		DevInf devinf;
+
+		_device_id = (device != null ? device.getDeviceId() : null);
+		_signature = signature;
+		_charset = (device != null ? device.getCharset() : null);
+		_timezone = (device != null ? device.getTimeZone() : null);
+
+		try {
+			devinf = device.getCapabilities().getDevInf();
+		} catch (Exception e) {
+			devinf = null;
+		}
+
+		_rx_types = getPreferredTypes(devinf, SOGoUtilities.RX);
+		_tx_types = getPreferredTypes(devinf, SOGoUtilities.TX);
+
+		if (devinf != null) {
+			_iphone = (devinf.getMod() != null && devinf.getMod().equalsIgnoreCase("iPhone"));
+			_blackberry = (devinf.getMan() != null && devinf.getMan().equalsIgnoreCase("Research In Motion"));
+			_utc = (devinf.getUTC() != null && devinf.getUTC().booleanValue());
+		}
+	}
+
+	/**
+	 * Returns the profile of the device of the sync context, computing
+	 * it if it isn't cached or if the device has changed.
+	 *
+	 * @param context
+	 * @return the profile - never null
+	 */
+	public static SOGoDeviceProfile getProfile(SyncContext context) {
+		SOGoDeviceProfile profile;
+		Sync4jDevice device;
+		String signature;
+
+		try {
+			device = context.getPrincipal().getDevice();
+		} catch (Exception e) {
+			device = null;
+		}
+
+		// Without a device id, there's nothing we can cache the profile under
+		if (device == null || device.getDeviceId() == null)
+			return new SOGoDeviceProfile(device, null);
+
+		signature = getSignature(device);
+		profile = _profiles.get(device.getDeviceId());
+
+		if (profile == null || !profile._signature.equals(signature)) {
+			profile = new SOGoDeviceProfile(device, signature);
+			_profiles.put(device.getDeviceId(), profile);
+		}
+
+		return profile;
+	}
+
+	/**
+	 * Drops the cached profile of the specified device.
+	 *
+	 * @param deviceId
+	 */
+	public static void invalidate(String deviceId) {
+		_profiles.remove(deviceId);
+	}
+
+	/**
+	 * The capabilities of a device are stored with a new id
+	 * whenever the device sends a new devinf.
+	 */
+	private static String getSignature(Sync4jDevice device) {
+		Capabilities capabilities;
+
+		capabilities = device.getCapabilities();
+
+		return (capabilities != null ? String.valueOf(capabilities.getId()) : "none") + "/" + device.getCharset() + "/" + device.getTimeZone();
+	}
+
+	/**
+	 * Computes the preferred item types of the device from the content
+	 * types and versions of its data stores. If we haven't been able to get
+	 * any data store, we simply assume the device only supports the SIF
+	 * standard.
+	 *
+	 * @param devinf
+	 * @param way
+	 * @return the preferred types, indexed by CONTACT, EVENT, TODO and OTHER
+	 */
+	private static int[] getPreferredTypes(DevInf devinf, int way) {
+		HashSet<String> types, versions;
+		List<?> dataStores;
+		DataStore ds;
+		int[] preferred;
+		int i;
+
+		preferred = new int[4];
+
+		try {
+			dataStores = devinf.getDataStores();
+
+			types = new HashSet<String>();
+			versions = new HashSet<String>();
+
+			for (i = 0; i < dataStores.size(); i++) {
+				ds = (DataStore)dataStores.get(i);
+
+				if (way == SOGoUtilities.RX) {
+					types.add(ds.getRxPref().getCTType().trim());
+					versions.add(ds.getRxPref().getVerCT().trim());
+				} else {
+					types.add(ds.getTxPref().getCTType().trim());
+					versions.add(ds.getTxPref().getVerCT().trim());
+				}
+			}
+		} catch (Exception e) {
+			preferred[CONTACT] = SOGoSyncSource.X_S4J_SIFC;
+			preferred[EVENT] = SOGoSyncSource.X_S4J_SIFE;
+			preferred[TODO] = SOGoSyncSource.X_S4J_SIFT;
+			preferred[OTHER] = SOGoSyncSource.X_S4J_SIFT;
+			return preferred;
+		}
+
+		// This still is a guess as we have no way on linking the
+		// Device's capabilities with a current SyncSource.
+		if (types.contains("text/x-s4j-sifc"))
+			preferred[CONTACT] = SOGoSyncSource.X_S4J_SIFC;
+		else if (versions.contains("3.0"))
+			preferred[CONTACT] = SOGoSyncSource.VCARD_VERSION_30;
+		else
+			preferred[CONTACT] = SOGoSyncSource.VCARD_VERSION_21;
+
+		preferred[OTHER] = preferred[CONTACT];
+
+		if (types.contains("text/x-s4j-sife"))
+			preferred[EVENT] = SOGoSyncSource.X_S4J_SIFE;
+		else if (versions.contains("2.0"))
+			preferred[EVENT] = SOGoSyncSource.VCALENDAR_VERSION_20;
+		else
+			preferred[EVENT] = SOGoSyncSource.VCALENDAR_VERSION_10;
+
+		if (types.contains("text/x-s4j-sift"))
+			preferred[TODO] = SOGoSyncSource.X_S4J_SIFT;
+		else if (versions.contains("2.0"))
+			preferred[TODO] = SOGoSyncSource.VCALENDAR_VERSION_20;
+		else
+			preferred[TODO] = SOGoSyncSource.VCALENDAR_VERSION_10;
+
+		return preferred;
+	}
+
+	/**
+	 * Returns the most appropriate item type for the sync source type.
+	 *
+	 * @param syncSourceType
+	 * @param way SOGoUtilities.RX or SOGoUtilities.TX
+	 * @return
+	 */
+	public int getPreferredItemType(int syncSourceType, int way) {
+		int[] types;
+
+		types = (way == SOGoUtilities.RX ? _rx_types : _tx_types);
+
+		switch (syncSourceType) {
+		case SOGoSyncSource.SOGO_EVENT:
+			return types[EVENT];
+		case SOGoSyncSource.SOGO_TODO:
+			return types[TODO];
+		case SOGoSyncSource.SOGO_CONTACT:
+			return types[CONTACT];
+		default:
+			return types[OTHER];
+		}
+	}
+
+	public String getDeviceId() {
+		return _device_id;
+	}
+
+	public boolean isIPhone() {
+		return _iphone;
+	}
+
+	public boolean isBlackBerry() {
+		return _blackberry;
+	}
+
+	public boolean isUTC() {
+		return _utc;
+	}
+
+	public String getCharset() {
+		return _charset;
+	}
+
+	public String getTimeZone() {
+		return _timezone;
+	}
+}
@@ -54,7 +54,7 @@ public class SOGoEventUtilities {
 	public static SyncItem addvEventSyncItem(SyncItem item, SOGoSyncSource source, SyncContext context, FunambolLogger log)  {
 		try {
 			String c_content, c_name, c_location, c_cycleinfo, c_title, location, tag, c_category;
-			PreparedStatement s;
+			SOGoWriteBatch.Unit unit;
 			TimeZone userTZ;
 			Event event;
             CalendarData data;
@@ -63,7 +63,7 @@ public class SOGoEventUtilities {
 			long s_date, e_date, created, modified;
 						
             userTZ = SOGoUtilities.getUserTimeZone(source, context, log);
-            data = new CalendarData(item, userTZ, source.getDeviceCharset());
+            data = source.getCalendarData(item, userTZ);
 			c_content = data.getContent();
 						
 			event = data.getCalendar().getEvent();
@@ -121,7 +121,8 @@ public class SOGoEventUtilities {
 				if (roles != SOGoACLManager.SOGoACLOwner && !SOGoACLManager.hasACL(roles, SOGoACLManager.SOGoACLObjectCreator))
 					throw new SyncSourceException("No access rights on " + location + " - ObjectCreator is needed");
 				
-				c_content = SOGoUtilities.removeTagFromContent(c_content, tag, source, context, log);
+				data.removeTag(tag);
+				c_content = data.getContent();
 			}
 
             // Get creation and modification time for event
@@ -139,40 +140,37 @@ public class SOGoEventUtilities {
             }
 
 			// We insert into our normal table
-			s = source.getDBConnection().prepareStatement("INSERT INTO " + location + " (c_name, c_content, c_creationdate, c_lastmodified, c_version) VALUES (?, ?, ?, ?, ?)");
-			s.setString(1, c_name);
-			s.setString(2, c_content);
-			s.setLong(3, created);
-			s.setLong(4, modified);
-			s.setInt(5, 0);
-			s.executeUpdate();
-			s.close();
+			unit = new SOGoWriteBatch.Unit(c_name);
+			unit.add(SOGoStatementCache.INSERT_CONTENT, location,
+					c_name,
+					c_content,
+					Long.valueOf(created),
+					Long.valueOf(modified),
+					Integer.valueOf(0));
 
 			// We now update the quick table
+			unit.add(SOGoStatementCache.INSERT_EVENT_QUICK, location + "_quick",
+					c_name,							// c_cname
+					c_name,							// c_uid
+					Long.valueOf(s_date),			// c_startdate
+					Long.valueOf(e_date),			// c_endate
+					c_title,						// c_title
+					Integer.valueOf(event.isAllDay() ? 1 : 0),	// c_isallday
+					Integer.valueOf(c_classification),	// c_classification
+					Integer.valueOf(0),				// c_status
+					Integer.valueOf(0),				// c_priority
+					c_location,						// c_location
+					"",								// c_partmails
+					"",								// c_partstates
+					"vevent",						// c_component
+					Integer.valueOf(c_isopaque),	// c_isopaque
+					Integer.valueOf(c_iscycle),		// c_iscycle
+					c_cycleinfo,					// c_cycleinfo
+					c_category);					// c_category
 			
-			s = source.getDBConnection().prepareStatement("INSERT INTO " + location + "_quick" + " (c_name, c_uid, c_startdate, c_enddate, c_title, c_isallday, c_classification, c_status, c_priority, c_location, c_partmails, c_partstates, c_component, c_isopaque, c_iscycle, c_cycleinfo, c_category) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-			
-			s.setString(1, c_name);		  // c_cname
-			s.setString(2, c_name); 	  // c_uid
-			s.setLong(3, s_date);		  // c_startdate
-			s.setLong(4, e_date);		  // c_endate
-			s.setString(5, c_title);	  // c_title
-			s.setInt(6, event.isAllDay() ? 1 : 0); 	// c_isallday
-			s.setInt(7, c_classification);// c_classification  
-			s.setInt(8, 0);				  // c_status
-			s.setInt(9, 0);  		      // c_priority
-			s.setString(10, c_location);  // c_location
-			s.setString(11, "");		  // c_partmails
-			s.setString(12, "");		  // c_partstates
-			s.setString(13, "vevent");    // c_component
-			s.setInt(14, c_isopaque);	  // c_isopaque
-			s.setInt(15, c_iscycle);      // c_iscycle
-			s.setString(16, c_cycleinfo); // c_cycleinfo
-			s.setString(17, c_category); // c_category
-			s.executeUpdate();
-			s.close();
-			
-			source.getDBConnection().commit();
+			source.queueWrite(unit);
+			source.setItemLocation(c_name, location);
+			source.updateCalendarTwin(location, "vevent", c_name, s_date, e_date, c_title);
 
 			item.setState(SyncItemState.SYNCHRONIZED);		
 		} catch (Exception e) {
@@ -293,8 +291,9 @@ public class SOGoEventUtilities {
 	 */
 	public static SyncItem updatevEventSyncItem(SyncItem item, String tag, String collection, SOGoSyncSource source, SyncContext context, FunambolLogger log) throws SyncSourceException {
 		try {
-			String c_content, c_name, c_title, c_location, c_cycleinfo, c_category;
+			String c_content, c_name, c_title, c_location, c_cycleinfo, c_category, stored;
 			PreparedStatement s;
+			SOGoWriteBatch.Unit unit;
 			TimeZone userTZ;
 			Event event;
             CalendarData data;
@@ -305,7 +304,7 @@ public class SOGoEventUtilities {
 			boolean doMerge = true;
 			
             userTZ = SOGoUtilities.getUserTimeZone(source, context, log);
-            data = new CalendarData(item, userTZ, source.getDeviceCharset());
+            data = source.getCalendarData(item, userTZ);
 			c_content = data.getContent();
             event = data.getCalendar().getEvent();
             c_title = event.getSummary().getPropertyValueAsString();
@@ -329,7 +328,8 @@ public class SOGoEventUtilities {
 					(roles != SOGoACLManager.SOGoACLOwner && !SOGoACLManager.hasACL(roles, role)))
 					throw new SyncSourceException("No access rights on " + collection + " - Modifier is needed");
 				
-				c_content = SOGoUtilities.removeTagFromContent(c_content, tag, source, context, log);
+				data.removeTag(tag);
+				c_content = data.getContent();
                 c_title = c_title.substring(tag.length() + 3);
                 event.getSummary().setPropertyValue(c_title);
 			}
@@ -363,12 +363,14 @@ public class SOGoEventUtilities {
                 modified = item.getTimestamp().getTime() / 1000;
             }
 
+			stored = null;
+
 			if (doMerge) {
 				Event originalEvent;
 				ResultSet rs;
 				String merged_content;
 
-				s = source.getDBConnection().prepareStatement("SELECT c_content FROM " + collection + " WHERE c_name = ?");
+				s = source.prepareStatement(SOGoStatementCache.SELECT_CONTENT, collection);
 				s.setString(1, c_name);
 				rs = s.executeQuery();
 				
@@ -385,7 +387,8 @@ public class SOGoEventUtilities {
                     VComponentWriter writer;
 					int i;
 					
-					p = new ICalendarParser(new ByteArrayInputStream(rs.getString(1).getBytes()));
+					stored = rs.getString(1);
+					p = new ICalendarParser(new ByteArrayInputStream(stored.getBytes()));
 					calendar = p.ICalendar();
 					
 					// We save our attendees' list as Funambol will stupidly loose it
@@ -412,40 +415,45 @@ public class SOGoEventUtilities {
 					merged_content = writer.toString(calendar);
 				}
 
+				rs.close();
+
 				if (originalEvent != null) {
 					c_content = merged_content;
 				}
 
 			} // if (doMerge) ...
 			
-			// We insert into our normal table
-			s = source.getDBConnection().prepareStatement("UPDATE " + collection + " SET c_content = ?, c_lastmodified = ? WHERE c_name = ?");
-			s.setString(1, c_content);
-			s.setLong(2, modified);
-			s.setString(3, c_name);
-			s.executeUpdate();
-			s.close();
+			// We don't write anything if the event hasn't changed, so that
+			// its version - and the ETag SOGo gives to its clients - stay the same
+			if (SOGoFingerprint.isUnchanged(stored, c_content)) {
+				source.skipWrite(c_name);
+			} else {
+				// We insert into our normal table
+				unit = new SOGoWriteBatch.Unit(c_name);
+				unit.add(SOGoStatementCache.UPDATE_CONTENT, collection,
+						c_content,
+						Long.valueOf(modified),
+						c_name);
+
+				// We now update the quick table
+				// FIXME consider other values
+				unit.add(SOGoStatementCache.UPDATE_EVENT_QUICK, collection + "_quick",
+						Long.valueOf(s_date),					// c_startdate
+						Long.valueOf(e_date),					// c_endate
+						c_title,								// c_title
+						Integer.valueOf(event.isAllDay() ? 1 : 0),	// c_isallday
+						c_location,								// c_location
+						Integer.valueOf(c_iscycle),				// c_iscycle
+						c_cycleinfo,							// c_cycleinfo
+						Integer.valueOf(c_classification),		// c_classification
+						Integer.valueOf(c_isopaque),			// c_isopaque
+						c_category,								// c_category
+						c_name);
+
+				source.queueWrite(unit);
+			}
 
-			// We now update the quick table
-			// FIXME consider other values
-			s = source.getDBConnection().prepareStatement("UPDATE " + collection + "_quick" + " SET c_startdate = ?, c_enddate = ?, c_title = ?, c_isallday = ?, c_location = ?, c_iscycle = ?, c_cycleinfo = ?, c_classification = ?, c_isopaque = ?, c_category = ? WHERE c_name = ?");
-			s.setLong(1, s_date);					// c_startdate
-			s.setLong(2, e_date);					// c_endate
-			s.setString(3, c_title);				// c_title
-			s.setInt(4, event.isAllDay() ? 1 : 0); 	// c_isallday
-			s.setString(5, c_location); 			// c_location
-			s.setInt(6, c_iscycle);                 // c_iscycle
-			s.setString(7, c_cycleinfo);			// c_cycleinfo
-			s.setInt(8, c_classification);			// c_classification
-			s.setInt(9, c_isopaque);				// c_isopaque
-			s.setString(10, c_category);			// c_category
-			s.setString(11, c_name);
-			s.executeUpdate();
-			s.close();
-
-			SOGoUtilities.updateContentVersion(source.getDBConnection(), collection, c_name);
-
-			source.getDBConnection().commit();
+			source.updateCalendarTwin(collection, "vevent", c_name, s_date, e_date, c_title);
 			
 			item.setState(SyncItemState.UPDATED);
 		} catch (Exception e) {
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * This class computes fingerprints of vCard and iCalendar content, used to
+ * know if an item sent by the device differs from the one we have.
+ *
+ * The content is normalized before being hashed - lines are unfolded, line
+ * endings and trailing whitespace are ignored, property names are case-folded
+ * and the properties which change on every conversion (DTSTAMP, PRODID, ...)
+ * are dropped.
+ */
+public class SOGoFingerprint {
+
+	// The properties which aren't part of the fingerprint
+	private static final HashSet<String> VOLATILE_PROPERTIES = new HashSet<String>(Arrays.asList(new String[] {
+		"DTSTAMP", "LAST-MODIFIED", "PRODID", "REV"
+	}));
+
+	/**
+	 * Returns the SHA-1 fingerprint of the normalized content.
+	 *
+	 * @param content
+	 * @return the fingerprint, as an hex string, or null if content is null
+	 */
+	public static String getFingerprint(String content) {
+		MessageDigest md;
+		StringBuffer buf;
+		String[] lines;
+		String line, name;
+		byte[] digest;
+		int i, j;
+
+		if (content == null)
+			return null;
+
+		// We unfold the lines
+		content = content.replaceAll("\r?\n[ \t]", "");
+		lines = content.split("\r?\n|\r");
+		buf = new StringBuffer(content.length());
+
+		for (i = 0; i < lines.length; i++) {
+			line = lines[i].trim();
+
+			if (line.length() == 0)
+				continue;
+
+			for (j = 0; j < line.length() && line.charAt(j) != ':' && line.charAt(j) != ';'; j++);
+
+			name = line.substring(0, j).toUpperCase();
+
+			if (VOLATILE_PROPERTIES.contains(name))
+				continue;
+
+			buf.append(name);
+			buf.append(line.substring(j));
+			buf.append('\n');
+		}
+
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+			digest = md.digest(buf.toString().getBytes("UTF-8"));
+		} catch (Exception e) {
+			// SHA-1 and UTF-8 are always available
+			throw new IllegalStateException(e.toString());
+		}
+
+		buf = new StringBuffer(digest.length * 2);
+
+		for (i = 0; i < digest.length; i++) {
+			buf.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			buf.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+
+		return buf.toString();
+	}
+
+	/**
+	 *
+	 * @param stored the content we have, null if none
+	 * @param content the content to write
+	 * @return true if both contents have the same fingerprint
+	 */
+	public static boolean isUnchanged(String stored, String content) {
+		if (stored == null || content == null)
+			return false;
+
+		return getFingerprint(stored).equals(getFingerprint(content));
+	}
+}
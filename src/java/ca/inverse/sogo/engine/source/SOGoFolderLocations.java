@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+
+import com.funambol.framework.logging.FunambolLogger;
+
+/**
+ * This class caches, process-wide, the tables in which the folders of the
+ * users are stored, as found in sogo_folder_info. They practically never
+ * change, so that in steady state a sync session doesn't query
+ * sogo_folder_info at all.
+ *
+ * Locations are keyed by user and folder path. Folders we couldn't find are
+ * cached too, for a shorter time. The locations of a user are dropped when
+ * one of their tables appears to be missing, and on slow syncs.
+ */
+public class SOGoFolderLocations {
+
+	// Cache settings
+	private static final int CACHE_SIZE = 10000;
+	private static final long CACHE_TTL = 3600000;
+	private static final long NEGATIVE_CACHE_TTL = 300000;
+
+	// What we cache for folders we couldn't find
+	private static final String[] NONE = new String[0];
+
+	// All cached locations - the table and the quick table of each folder - keyed
+	// by "user/generation path". Invalidating the locations of a user bumps the
+	// user's generation, so that the old entries are no longer reachable.
+	private static SOGoCache<String, String[]> _locations = new SOGoCache<String, String[]>(CACHE_SIZE, CACHE_TTL);
+	private static HashMap<String, Integer> _generations = new HashMap<String, Integer>();
+
+	/**
+	 * Returns the tables of a personal folder of the user.
+	 *
+	 * @param source
+	 * @param uid
+	 * @param folder "Contacts" or "Calendar"
+	 * @param log
+	 * @return the table and the quick table, or null if the folder doesn't exist
+	 * @throws SQLException
+	 */
+	public static String[] getPersonalLocation(SOGoSyncSource source, String uid, String folder, FunambolLogger log) throws SQLException {
+		PreparedStatement s;
+		String[] location;
+		ResultSet rs;
+		String key;
+
+		key = getKey(uid, folder + "/personal");
+		location = _locations.get(key);
+
+		if (location == null) {
+			s = source.getDBConnection().prepareStatement("SELECT c_location, c_quick_location FROM sogo_folder_info WHERE c_path2 = ? AND c_path3 = ? AND c_path4 = 'personal'");
+			s.setString(1, uid);
+			s.setString(2, folder);
+			rs = s.executeQuery();
+			location = NONE;
+
+			if (rs.next())
+				location = new String[] { getTable(rs.getString(1)), getTable(rs.getString(2)) };
+
+			rs.close();
+			s.close();
+
+			put(key, location);
+			log.info("Loaded location of " + uid + "'s personal " + folder + ": " + (location.length > 0 ? location[0] : "none"));
+		}
+
+		return (location.length > 0 ? location : null);
+	}
+
+	/**
+	 * Returns the table of the calendar a sync tag points to.
+	 *
+	 * @param source
+	 * @param username
+	 * @param value the value of the tag, like sogo1:Calendar/2230-4A609280-1-3C4950E0
+	 * @return the table, or null if the calendar doesn't exist
+	 * @throws SQLException
+	 */
+	public static String getTagLocation(SOGoSyncSource source, String username, String value) throws SQLException {
+		String c_path, c_path2, key;
+		PreparedStatement s;
+		String[] location;
+		ResultSet rs;
+		int i;
+
+		key = getKey(username, value);
+		location = _locations.get(key);
+
+		if (location == null) {
+			i = value.indexOf(':');
+			c_path2 = value.substring(0, i);
+			c_path = value.substring(i+1);
+
+			// We always skip the 'personal' folders (for the current user) and we only get the 'Appointment' collections for
+			// now as it's not possible to set tags on additional address books from SOGo Web.
+			if (c_path2.equalsIgnoreCase(username))
+				s = source.getDBConnection().prepareStatement("SELECT c_path, c_location, c_quick_location FROM sogo_folder_info WHERE c_path4 != 'personal' AND c_folder_type = 'Appointment' AND c_path2 = ?");
+			else
+				s = source.getDBConnection().prepareStatement("SELECT c_path, c_location, c_quick_location FROM sogo_folder_info WHERE c_folder_type = 'Appointment' AND c_path2 = ?");
+
+			s.setString(1, c_path2);
+			rs = s.executeQuery();
+			location = NONE;
+
+			while (rs.next()) {
+				if (rs.getString(1).endsWith(c_path))
+					location = new String[] { getTable(rs.getString(2)), getTable(rs.getString(3)) };
+			}
+
+			rs.close();
+			s.close();
+
+			put(key, location);
+		}
+
+		return (location.length > 0 ? location[0] : null);
+	}
+
+	/**
+	 * Drops the cached locations of the specified user.
+	 *
+	 * @param uid
+	 */
+	public static void invalidate(String uid) {
+		Integer generation;
+
+		synchronized (_generations) {
+			generation = _generations.get(uid);
+			_generations.put(uid, Integer.valueOf(generation == null ? 1 : generation.intValue() + 1));
+		}
+	}
+
+	/**
+	 *
+	 * @param e
+	 * @return true if the exception was raised because a table doesn't exist
+	 */
+	public static boolean isMissingTable(SQLException e) {
+		String state;
+
+		state = e.getSQLState();
+
+		// PostgreSQL, MySQL and Oracle (ORA-00942)
+		return ("42P01".equals(state) || "42S02".equals(state) || e.getErrorCode() == 942);
+	}
+
+	private static String getKey(String uid, String path) {
+		Integer generation;
+
+		synchronized (_generations) {
+			generation = _generations.get(uid);
+		}
+
+		return uid + "/" + (generation == null ? 0 : generation.intValue()) + " " + path;
+	}
+
+	private static void put(String key, String[] location) {
+		if (location.length > 0)
+			_locations.put(key, location);
+		else
+			_locations.put(key, location, NEGATIVE_CACHE_TTL);
+	}
+
+	private static String getTable(String location) {
+		if (location == null)
+			return null;
+
+		return location.substring(location.lastIndexOf('/')+1);
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Vector;
+
+import com.funambol.framework.logging.FunambolLogger;
+
+/**
+ * This class is used to prefetch the content of items during a sync session.
+ *
+ * Keys returned by the enumeration methods of the sync source are registered
+ * here together with the table holding them. When the content of a registered
+ * key is requested, the content of the next pending keys of the same table is
+ * loaded as well, using one query per chunk instead of two queries per key.
+ *
+ * Only items having a row in both the content and the quick table are loaded.
+ * Loaded items are handed out once and then forgotten, so the buffer never
+ * holds more than a chunk of items per table. For calendars, the
+ * classification of the items is loaded from the quick table as well.
+ */
+public class SOGoItemBuffer {
+
+	// The maximum number of items we load with one query
+	public static final int CHUNK_SIZE = 100;
+
+	// Private ivars
+	private HashMap<String, LinkedHashSet<String>> _pending;
+	private HashMap<String, String> _tables;
+	private HashMap<String, Item> _items;
+	private boolean _classifications;
+
+	/**
+	 * The content of an item and the table it was loaded from.
+	 */
+	public static class Item {
+		private String _table;
+		private String _content;
+		private int _classification;
+
+		Item(String table, String content, int classification) {
+			_table = table;
+			_content = content;
+			_classification = classification;
+		}
+
+		public String getTable() {
+			return _table;
+		}
+
+		public String getContent() {
+			return _content;
+		}
+
+		/**
+		 *
+		 * @return the c_classification of the item, or -1 if it wasn't loaded
+		 */
+		public int getClassification() {
+			return _classification;
+		}
+	}
+
+	/**
+	 *
+	 * @param classifications true if the quick tables have a c_classification
+	 *        column to load along with the content
+	 */
+	public SOGoItemBuffer(boolean classifications) {
+		_pending = new HashMap<String, LinkedHashSet<String>>();
+		_tables = new HashMap<String, String>();
+		_items = new HashMap<String, Item>();
+		_classifications = classifications;
+	}
+
+	/**
+	 * Registers a key to be prefetched from the specified table. If the key
+	 * was already registered, the first table is kept, as it's the first one
+	 * getSyncItemFromId() would look into.
+	 *
+	 * @param key the encoded key (c_name)
+	 * @param table
+	 */
+	public void add(String key, String table) {
+		LinkedHashSet<String> keys;
+
+		if (_tables.containsKey(key) || _items.containsKey(key))
+			return;
+
+		keys = _pending.get(table);
+
+		if (keys == null) {
+			keys = new LinkedHashSet<String>();
+			_pending.put(table, keys);
+		}
+
+		keys.add(key);
+		_tables.put(key, table);
+	}
+
+	/**
+	 * Returns the item associated with the key, loading it along with the
+	 * next pending keys of its table if needed.
+	 *
+	 * @param key the encoded key (c_name)
+	 * @param source
+	 * @param log
+	 * @return the item, or null if the key wasn't registered or if it has
+	 *         no row in either the content or the quick table
+	 * @throws SQLException
+	 */
+	public Item get(String key, SOGoSyncSource source, FunambolLogger log) throws SQLException {
+		String table;
+
+		table = _tables.get(key);
+
+		if (table != null)
+			load(table, key, source, log);
+
+		return _items.remove(key);
+	}
+
+	/**
+	 * Forgets the key. Must be called whenever the item is modified
+	 * so that we never serve stale content.
+	 *
+	 * @param key the encoded key (c_name)
+	 */
+	public void remove(String key) {
+		String table;
+
+		table = _tables.remove(key);
+
+		if (table != null)
+			_pending.get(table).remove(key);
+
+		_items.remove(key);
+	}
+
+	public void clear() {
+		_pending.clear();
+		_tables.clear();
+		_items.clear();
+	}
+
+	/**
+	 * Loads the key and the pending keys following it in the table.
+	 */
+	private void load(String table, String key, SOGoSyncSource source, FunambolLogger log) throws SQLException {
+		LinkedHashSet<String> keys;
+		Iterator<String> it;
+		Vector<String> chunk;
+		StringBuffer sql;
+		PreparedStatement s;
+		ResultSet rs;
+		String k;
+		int i;
+
+		keys = _pending.get(table);
+		chunk = new Vector<String>(CHUNK_SIZE);
+		chunk.add(key);
+		keys.remove(key);
+		_tables.remove(key);
+
+		it = keys.iterator();
+
+		while (it.hasNext() && chunk.size() < CHUNK_SIZE) {
+			k = it.next();
+			chunk.add(k);
+			it.remove();
+			_tables.remove(k);
+		}
+
+		sql = new StringBuffer(128 + chunk.size() * 2);
+		sql.append("SELECT " + table + ".c_name, " + table + ".c_content, " + (_classifications ? table + "_quick.c_classification" : "-1") + " FROM " + table + ", " + table + "_quick" + " WHERE " + table + ".c_name = " + table + "_quick" + ".c_name AND " + table + ".c_name IN (");
+
+		for (i = 0; i < chunk.size(); i++) {
+			sql.append(i == 0 ? "?" : ",?");
+		}
+
+		sql.append(")");
+
+		// Statements are cached by the sync source - all chunks
+		// but the last one of each table use the same one.
+		s = source.prepareStatement(sql.toString());
+
+		for (i = 0; i < chunk.size(); i++) {
+			s.setString(i+1, chunk.get(i));
+		}
+
+		rs = s.executeQuery();
+
+		while (rs.next()) {
+			_items.put(rs.getString(1), new Item(table, rs.getString(2), rs.getInt(3)));
+		}
+
+		rs.close();
+
+		log.info("Prefetched " + chunk.size() + " items from " + table);
+	}
+}
@@ -58,8 +58,7 @@ import org.w3c.dom.*;
 import org.apache.commons.lang.StringEscapeUtils;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
+import java.io.InputStream;
 import java.util.*;
 
 import com.funambol.common.pim.common.PropertyConverter;
@@ -78,11 +77,88 @@ public class SOGoPropertyConverter implements PropertyConverter {
     protected static final String PROP_PREFIX = "prop.";
     protected static final String VAL_PREFIX = "value.";
 
-    private Map sif2ICalDirectMappings;
-    private Map iCal2SifDirectMappings;
+    /*
+     * The mappings are loaded once and shared by all instances. They must
+     * never be modified once loaded.
+     */
+    private static volatile Map<String, String> sif2ICalDirectMappings;
+    private static volatile Map<String, String> iCal2SifDirectMappings;
+
+    private static final Map<String, List<String>> sif2ICalDependentMappings;
+    private static final Set<String> sif2ICalDependentProperties;
+    private static final Map<String, Boolean> iCal2SifDependentMappings;
+
+    /*
+     * The conversion of the properties having dependencies, keyed
+     * by the name of the SIF or iCalendar property.
+     */
+    private interface SifHandler {
+        Property convert ( SOGoPropertyConverter converter, Element e );
+    }
 
-    private Map sif2ICalDependentMappings;
-    private Map iCal2SifDependentMappings;
+    private interface ICalHandler {
+        String convert ( SOGoPropertyConverter converter, Property p );
+    }
+
+    private static final Map<String, SifHandler> sifHandlers;
+    private static final Map<String, ICalHandler> iCalHandlers;
+
+    static {
+        Map<String, List<String>> dependencies = new HashMap<String, List<String>> ();
+        dependencies.put ( "IsRecurring",
+                Arrays.asList ( new String[] {
+                        "RecurrenceType",       // just a hint: should be processed first
+                        "Interval",
+                        "MonthOfYear",
+                        "DayOfMonth",
+                        "DayOfWeekMask",
+                        "Instance",
+                        "PatternStartDate",
+                        "NoEndDate",
+                        "PatternEndDate",
+                        "Occurrences",
+                } )
+        );
+        dependencies.put ( "ReminderSet",
+                Arrays.asList ( new String[] {
+                        "ReminderMinutesBeforeStart",
+                        "ReminderSoundFile",
+                        "ReminderOptions",
+                } )
+        );
+        sif2ICalDependentMappings = Collections.unmodifiableMap ( dependencies );
+
+        Set<String> dependents = new HashSet<String> ();
+        for ( Iterator<List<String>> iter = dependencies.values ().iterator (); iter.hasNext (); ) {
+            dependents.addAll ( iter.next () );
+        }
+        sif2ICalDependentProperties = Collections.unmodifiableSet ( dependents );
+
+        Map<String, Boolean> iCalDependencies = new HashMap<String, Boolean> ();
+        iCalDependencies.put ( "RRULE", Boolean.TRUE );
+        iCal2SifDependentMappings = Collections.unmodifiableMap ( iCalDependencies );
+
+        Map<String, SifHandler> handlers = new HashMap<String, SifHandler> ();
+        handlers.put ( "IsRecurring", new SifHandler () {
+            public Property convert ( SOGoPropertyConverter converter, Element e ) {
+                return converter._convertIsRecurring ( e );
+            }
+        } );
+        handlers.put ( "ReminderSet", new SifHandler () {
+            public Property convert ( SOGoPropertyConverter converter, Element e ) {
+                return converter._convertReminderSet ( e );
+            }
+        } );
+        sifHandlers = Collections.unmodifiableMap ( handlers );
+
+        Map<String, ICalHandler> iCalHandlerMap = new HashMap<String, ICalHandler> ();
+        iCalHandlerMap.put ( "RRULE", new ICalHandler () {
+            public String convert ( SOGoPropertyConverter converter, Property p ) {
+                return converter._convertRRULE ( p );
+            }
+        } );
+        iCalHandlers = Collections.unmodifiableMap ( iCalHandlerMap );
+    }
 
     private VComponent ownerComponent;
     private String componentType;
@@ -124,27 +200,20 @@ public class SOGoPropertyConverter implements PropertyConverter {
                 /* perform appropriate mapping of property name & value */
                 String keyName = this.componentType + '.' + PROP_PREFIX + sifPropertyName;
                 String valName = this.componentType + '.' + VAL_PREFIX + sifPropertyName + "." + sifPropertyValue;
-                iCalPropertyName = (String) this.sif2ICalDirectMappings.get ( keyName );
-                iCalPropertyValue = (String) this.sif2ICalDirectMappings.get ( valName );
+                iCalPropertyName = sif2ICalDirectMappings.get ( keyName );
+                iCalPropertyValue = sif2ICalDirectMappings.get ( valName );
                 if ( iCalPropertyValue == null )
                     iCalPropertyValue = sifPropertyValue;
                 return new Property ( iCalPropertyName, iCalPropertyValue );
             } else if ( sifPropertyHasDependencies ( sifPropertyName ) ) {
                 /* process this property and all dependent properties */
-                try {
-                    String methodName = "_convert" + sifPropertyName;
-                    Method[] methods = getClass ().getDeclaredMethods ();
-                    for ( int i = 0; i < methods.length; i++ ) {
-                        if ( methods[i].getName ().equals ( methodName ) ) {
-                            methods[i].setAccessible ( true );
-                            return (Property) methods[i].invoke ( this, new Object[] { sifElement } );
-                        }
-                    }
+                SifHandler handler = sifHandlers.get ( sifPropertyName );
+                if ( handler == null )
                     return null;
-                } catch ( IllegalAccessException e ) {
+                try {
+                    return handler.convert ( this, sifElement );
+                } catch ( RuntimeException e ) {
                     throw new ConversionException ( e );
-                } catch ( InvocationTargetException e ) {
-                    throw new ConversionException ( e.getTargetException () );
                 }
             } else if ( sifPropertyIsDependent ( sifPropertyName ) ) {
                 /* skip property */
@@ -168,24 +237,18 @@ public class SOGoPropertyConverter implements PropertyConverter {
         if ( iCalPropertyMappedDirectly ( propertyName ) ) {
             String keyName = this.componentType + '.' + PROP_PREFIX + propertyName;
             String valName = this.componentType + '.' + VAL_PREFIX + propertyName + "." + propertyValue;
-            String sifTagName = (String) iCal2SifDirectMappings.get ( keyName );
-            String sifTagValue = (String) iCal2SifDirectMappings.get ( valName );
+            String sifTagName = iCal2SifDirectMappings.get ( keyName );
+            String sifTagValue = iCal2SifDirectMappings.get ( valName );
             if ( sifTagValue == null ) sifTagValue = propertyValue;
             sifTag = createSifTag ( sifTagName,  sifTagValue );
         } else if ( iCalPropertyHasDependencies ( propertyName ) ) {
-            try {
-                String methodName = "_convert" + propertyName;
-                Method[] methods = getClass ().getDeclaredMethods ();
-                for ( int i = 0; i < methods.length; i++ ) {
-                    if ( methods[i].getName ().equals ( methodName ) ) {
-                        methods[i].setAccessible ( true );
-                        return (String) methods[i].invoke ( this, new Object[] { p } );
-                    }
+            ICalHandler handler = iCalHandlers.get ( propertyName );
+            if ( handler != null ) {
+                try {
+                    return handler.convert ( this, p );
+                } catch ( RuntimeException e ) {
+                    throw new ConversionException ( e );
                 }
-            } catch ( IllegalAccessException e ) {
-                throw new ConversionException ( e );
-            } catch ( InvocationTargetException e ) {
-                throw new ConversionException ( e.getTargetException () );
             }
         } else if ( propertyName.toUpperCase ().startsWith ( DEFAULT_X_PREFIX ) ) {
             String sifTagName = propertyName.substring ( DEFAULT_X_PREFIX.length () );
@@ -198,69 +261,72 @@ public class SOGoPropertyConverter implements PropertyConverter {
     }
 
     private boolean sifPropertyIsDependent ( String sifPropertyName ) {
-        Set entrySet = this.sif2ICalDependentMappings.entrySet ();
-        for ( Iterator iter = entrySet.iterator (); iter.hasNext (); ) {
-            Map.Entry entry = (Map.Entry) iter.next ();
-            List list = (List) entry.getValue ();
-            if ( list.contains ( sifPropertyName ) ) return true;
-        }
-
-        return false;
+        return sif2ICalDependentProperties.contains ( sifPropertyName );
     }
 
     private boolean sifPropertyHasDependencies ( String sifPropertyName ) {
-        return this.sif2ICalDependentMappings.containsKey ( sifPropertyName );
+        return sif2ICalDependentMappings.containsKey ( sifPropertyName );
     }
 
     private boolean sifPropertyMappedDirectly ( String sifPropertyName ) {
         String key = this.componentType + '.' + PROP_PREFIX + sifPropertyName;
-        String val = (String) this.sif2ICalDirectMappings.get ( key );
+        String val = sif2ICalDirectMappings.get ( key );
 
         return ( ( val != null ) && ! "".equals ( val ) );
     }
 
     private boolean iCalPropertyMappedDirectly ( String iCalPropertyName ) {
-        String val = (String) this.iCal2SifDirectMappings.get ( this.componentType + '.' + PROP_PREFIX + iCalPropertyName );
+        String val = iCal2SifDirectMappings.get ( this.componentType + '.' + PROP_PREFIX + iCalPropertyName );
         return ( ( val != null ) && ! "".equals ( val ) );
     }
 
     private boolean iCalPropertyHasDependencies ( String iCalPropertyName ) {
-        return this.iCal2SifDependentMappings.containsKey ( iCalPropertyName );
+        return iCal2SifDependentMappings.containsKey ( iCalPropertyName );
     }
 
-    private void initMappings () throws IOException {
-        Properties mappings = new java.util.Properties ();
-        mappings.load ( getClass ().getResourceAsStream ( SIF2ICAL_MAPPINGS_RESOURCE ) );
-        this.sif2ICalDirectMappings = (Map) mappings.clone ();
-        mappings.load ( getClass ().getResourceAsStream ( ICAL2SIF_MAPPINGS_RESOURCE ) );
-        this.iCal2SifDirectMappings = (Map) mappings.clone ();
+    /**
+     * Loads the direct mappings from the classpath the first time an
+     * instance is created. If they can't be loaded, the next instance
+     * will try again.
+     */
+    private static void initMappings () throws IOException {
+        if ( iCal2SifDirectMappings == null ) {
+            synchronized ( SOGoPropertyConverter.class ) {
+                if ( iCal2SifDirectMappings == null )
+                    loadMappings ();
+            }
+        }
+    }
 
-        Map dependencies = new Hashtable ();
-        dependencies.put ( "IsRecurring",
-                Arrays.asList ( new String[] {
-                        "RecurrenceType",       // just a hint: should be processed first
-                        "Interval",
-                        "MonthOfYear",
-                        "DayOfMonth",
-                        "DayOfWeekMask",
-                        "Instance",
-                        "PatternStartDate",
-                        "NoEndDate",
-                        "PatternEndDate",
-                        "Occurrences",
-                } )
-        );
-        dependencies.put ( "ReminderSet",
-                Arrays.asList ( new String[] {
-                        "ReminderMinutesBeforeStart",
-                        "ReminderSoundFile",
-                        "ReminderOptions",
-                } )
-        );
-        this.sif2ICalDependentMappings = dependencies;
+    private static void loadMappings () throws IOException {
+        Properties mappings = new Properties ();
+        loadMappings ( mappings, SIF2ICAL_MAPPINGS_RESOURCE );
+        Map<String, String> sif2ICal = Collections.unmodifiableMap ( toMap ( mappings ) );
+        loadMappings ( mappings, ICAL2SIF_MAPPINGS_RESOURCE );
+        Map<String, String> iCal2Sif = Collections.unmodifiableMap ( toMap ( mappings ) );
+
+        sif2ICalDirectMappings = sif2ICal;
+        iCal2SifDirectMappings = iCal2Sif;
+    }
 
-        this.iCal2SifDependentMappings = new Hashtable ();
-        this.iCal2SifDependentMappings.put ( "RRULE", Boolean.TRUE );
+    private static Map<String, String> toMap ( Properties properties ) {
+        Map<String, String> map = new HashMap<String, String> ( properties.size () * 2 );
+        for ( Iterator<Map.Entry<Object, Object>> iter = properties.entrySet ().iterator (); iter.hasNext (); ) {
+            Map.Entry<Object, Object> entry = iter.next ();
+            map.put ( (String) entry.getKey (), (String) entry.getValue () );
+        }
+        return map;
+    }
+
+    private static void loadMappings ( Properties mappings, String resource ) throws IOException {
+        InputStream in = SOGoPropertyConverter.class.getResourceAsStream ( resource );
+        if ( in == null )
+            throw new IOException ( "Couldn't find " + resource );
+        try {
+            mappings.load ( in );
+        } finally {
+            in.close ();
+        }
     }
 
     /* conversion for inter-dependent properties  */
@@ -286,7 +352,7 @@ public class SOGoPropertyConverter implements PropertyConverter {
             String val = params[1];
 
             if ( key.equals ( "FREQ" ) ) {
-                String sifValue = (String) iCal2SifDirectMappings.get ( "rrule." + key + '.' + val );
+                String sifValue = iCal2SifDirectMappings.get ( "rrule." + key + '.' + val );
                 olRecurrenceType = Integer.valueOf ( sifValue ).intValue ();
             }
 
@@ -307,7 +373,7 @@ public class SOGoPropertyConverter implements PropertyConverter {
                 	// RRULE:INTERVAL=1;FREQ=WEEKLY;BYDAY=SU\,MO
                 	// The "\," will cause issues.
                 	name = name.replace("\\", "");
-                    String dayMaskValue = (String) iCal2SifDirectMappings.get ( "rrule." + key + '.' + name );
+                    String dayMaskValue = iCal2SifDirectMappings.get ( "rrule." + key + '.' + name );
                     
                     // We make this check as we might have something like this: BYDAY=3SU  or BYDAY=1MO
                     // The "3SU" isn't contained in our property file.
@@ -372,8 +438,8 @@ public class SOGoPropertyConverter implements PropertyConverter {
 
         String sifRecurrenceType = getSifValue ( rootElement, "RecurrenceType" );
         if ( sifRecurrenceType != null ) {
-            String iCalRecurrenceType = (String)
-                    this.sif2ICalDirectMappings.get ( "rrule.RecurrenceType." + sifRecurrenceType );
+            String iCalRecurrenceType =
+                    sif2ICalDirectMappings.get ( "rrule.RecurrenceType." + sifRecurrenceType );
             propertyValue.append ( "FREQ=" ).append ( iCalRecurrenceType );
 
             String patternEndDate = getSifValue ( rootElement, "PatternEndDate" );
@@ -436,7 +502,7 @@ public class SOGoPropertyConverter implements PropertyConverter {
                 StringBuffer byDayBuffer = new StringBuffer ();
                 for ( int i = 1; i <= 64; i <<= 1 ) {
                     if ( ( dayOfWeekMask & i ) == i ) {
-                        String iCalWkDay = (String) this.sif2ICalDirectMappings.get ( "rrule.DayOfWeekMask." + i );
+                        String iCalWkDay = sif2ICalDirectMappings.get ( "rrule.DayOfWeekMask." + i );
                         if ( byDayBuffer.length () > 0 ) byDayBuffer.append ( ',' );
                         byDayBuffer.append ( iCalWkDay );
                     }
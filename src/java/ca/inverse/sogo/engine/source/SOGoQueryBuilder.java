@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+/**
+ * This class builds the queries used to enumerate the keys of the items
+ * of one or more collections.
+ *
+ * Every query returns the c_name of the items as its first column and the
+ * index of the collection holding them, in the collections array, as its
+ * second column. When querying more than one collection, the queries of all
+ * collections are combined using UNION ALL so that a single round-trip is
+ * needed. Rows are ordered by collection, then by date, as they used to be
+ * when each collection was queried on its own.
+ *
+ * Except for ALL_ITEMS, queries take two parameters per collection: the
+ * start and the end of the time range.
+ */
+public class SOGoQueryBuilder {
+
+	// Constants for the type of enumeration
+	public static final int ALL_ITEMS = 1;
+	public static final int NEW_ITEMS = 2;
+	public static final int UPDATED_ITEMS = 3;
+	public static final int DELETED_ITEMS = 4;
+
+	/**
+	 * Builds the query for the collections between from (inclusive)
+	 * and to (exclusive).
+	 *
+	 * @param operation
+	 * @param collections
+	 * @param from
+	 * @param to
+	 * @param source_type
+	 * @return
+	 */
+	public static String getQuery(int operation, String[] collections, int from, int to, int source_type) {
+		StringBuffer sql;
+		int i;
+
+		sql = new StringBuffer(512 * (to - from));
+
+		for (i = from; i < to; i++) {
+			if (i > from)
+				sql.append(" UNION ALL ");
+
+			appendSelect(sql, operation, collections[i], i, source_type);
+		}
+
+		if (operation == ALL_ITEMS)
+			sql.append(" ORDER BY 2");
+		else
+			sql.append(" ORDER BY 2, 3");
+
+		return sql.toString();
+	}
+
+	/**
+	 * Builds the query returning, for the collections between from (inclusive)
+	 * and to (exclusive), the index of the collection and the last
+	 * modification date of its items - deleted items included. The date is
+	 * null if the collection is empty.
+	 *
+	 * @param collections
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public static String getLastModifiedQuery(String[] collections, int from, int to) {
+		StringBuffer sql;
+		int i;
+
+		sql = new StringBuffer(64 * (to - from));
+
+		for (i = from; i < to; i++) {
+			if (i > from)
+				sql.append(" UNION ALL ");
+
+			sql.append("SELECT " + i + " AS c_collection, MAX(c_lastmodified) FROM " + collections[i]);
+		}
+
+		return sql.toString();
+	}
+
+	/**
+	 *
+	 * @param operation
+	 * @return the number of parameters to bind for each collection of the query
+	 */
+	public static int getParameterCount(int operation) {
+		return (operation == ALL_ITEMS ? 0 : 2);
+	}
+
+	private static void appendSelect(StringBuffer sql, int operation, String table, int index, int source_type) {
+		String quick;
+
+		quick = table + "_quick";
+
+		switch (operation) {
+		case ALL_ITEMS:
+			sql.append("SELECT c_name, " + index + " AS c_collection FROM " + quick + " WHERE ");
+			appendComponent(sql, "c_component", source_type);
+			break;
+
+		case NEW_ITEMS:
+			// New entries have the same creation and last modification dates
+			sql.append("SELECT " + table + ".c_name, " + index + " AS c_collection, " + table + ".c_creationdate FROM " + table + ", " + quick);
+			sql.append(" WHERE " + table + ".c_creationdate >= ? AND " + table + ".c_creationdate <= ? AND " + table + ".c_name = " + quick + ".c_name AND ");
+			appendComponent(sql, quick + ".c_component", source_type);
+			sql.append(" AND " + table + ".c_creationdate = " + table + ".c_lastmodified");
+			break;
+
+		case UPDATED_ITEMS:
+			// We check if c_creationdate is different from c_lastmodified since this value
+			// is equal when new entries are created. We don't want to return the keys of
+			// new elements here.
+			sql.append("SELECT " + table + ".c_name, " + index + " AS c_collection, " + table + ".c_lastmodified FROM " + table + ", " + quick);
+			sql.append(" WHERE " + table + ".c_lastmodified > ? AND " + table + ".c_lastmodified <= ? AND " + table + ".c_name = " + quick + ".c_name AND ");
+			appendComponent(sql, quick + ".c_component", source_type);
+			sql.append(" AND " + table + ".c_lastmodified != " + table + ".c_creationdate");
+			break;
+
+		case DELETED_ITEMS:
+		default:
+			// Deleted entries no longer have a quick table entry so we can't
+			// filter on the component
+			sql.append("SELECT c_name, " + index + " AS c_collection, c_lastmodified FROM " + table + " WHERE c_deleted = 1 AND c_lastmodified >= ? AND c_lastmodified <= ?");
+		}
+	}
+
+	private static void appendComponent(StringBuffer sql, String column, int source_type) {
+		switch (source_type) {
+		case SOGoSyncSource.SOGO_CAL:
+			sql.append("( " + column + " = 'vevent' OR " + column + " = 'vtodo' )");
+			break;
+		case SOGoSyncSource.SOGO_EVENT:
+			sql.append(column + " = 'vevent'");
+			break;
+		case SOGoSyncSource.SOGO_TODO:
+			sql.append(column + " = 'vtodo'");
+			break;
+		default:
+			sql.append(column + " = 'vcard'");
+		}
+	}
+}
@@ -19,6 +19,9 @@
  */
 package ca.inverse.sogo.engine.source;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+
 import com.funambol.common.pim.calendar.Task;
 import com.funambol.common.pim.calendar.Calendar;
 import com.funambol.common.pim.common.Property;
@@ -28,66 +31,108 @@ import com.funambol.framework.logging.FunambolLogger;
 
 public class SOGoSanitizer {
 
+	// Replacements done on every line of vCalendar input, in that order
+	private static final String[][] VCALENDAR_REPLACEMENTS = {
+		// We replace TRANSP:OPAQUE / TRANSPARENT with the appropriate integer value.
+		// This will otherwise cause issues in SyncJe > v2.34
+		{"TRANSP:OPAQUE", "TRANSP:0"},
+		{"TRANSP:TRANSPARENT", "TRANSP:1"},
+		
+		// We replace any non-short value for X-MICROSOFT-CDO-BUSYSTATUS with
+		// the appropriate short value. If we don't do that, an exception
+		// will be raised in Funambol <= 6.5. We use the following mapping:
+		// FREE             -> 0   
+		// TENTATIVE        -> 1
+		// BUSY             -> 2
+		// UNAVAILABLE, OOF -> 3 (OOF seems to mean "Out of office" but isn't documented)
+		{"X-MICROSOFT-CDO-BUSYSTATUS:FREE", "X-MICROSOFT-CDO-BUSYSTATUS:0"},
+		{"X-MICROSOFT-CDO-BUSYSTATUS:TENTATIVE", "X-MICROSOFT-CDO-BUSYSTATUS:1"},
+		{"X-MICROSOFT-CDO-BUSYSTATUS:BUSY", "X-MICROSOFT-CDO-BUSYSTATUS:2"},
+		{"X-MICROSOFT-CDO-BUSYSTATUS:UNAVAILABLE", "X-MICROSOFT-CDO-BUSYSTATUS:3"},
+		{"X-MICROSOFT-CDO-BUSYSTATUS:OOF", "X-MICROSOFT-CDO-BUSYSTATUS:3"}
+	};
+	
 	/**
 	 * This method is used to fix the input we're getting FROM various
 	 * clients in order to avoid exceptions being generated by Funambol
 	 * upon parsing.
 	 * 
+	 * The content is scanned once, line by line, and every line is rewritten
+	 * as needed. The lines are then re-folded and joined, which is linear in
+	 * the size of the content.
+	 * 
 	 * @param bytes
 	 * @return
 	 */
 	public static String sanitizevCalendarInput(byte[] bytes, String key, FunambolLogger log) {
-		String delim, s, lines[];
+		String delim, alarmdate, content, s;
+		ArrayList<String> lines, chunks;
 		StringBuffer buf;
-		int a, i, len;
+		int a, i, start, len;
 		boolean b;
 		
-		buf = new StringBuffer(new String(bytes));
+		content = new String(bytes);
 		b = false;
 		
 		// We check to see how do we split our lines, using \r\n or simply \n.
-		if (buf.toString().indexOf("\r\n") >= 0) {
+		if (content.indexOf("\r\n") >= 0) {
 			delim = "\r\n";
 		} else {
 			delim = "\n";
 		}
-				
-		s = buf.toString();
-		
-		// We replace TRANSP:OPAQUE / TRANSPARENT with the appropriate integer value.
-		// This will otherwise cause issues in SyncJe > v2.34
-		s = s.replace("TRANSP:OPAQUE", "TRANSP:0");
-		s = s.replace("TRANSP:TRANSPARENT", "TRANSP:1");
 		
-		// We replace any non-short value for X-MICROSOFT-CDO-BUSYSTATUS with
-		// the appropriate short value. If we don't do that, an exception
-		// will be raised in Funambol <= 6.5. We use the following mapping:
-		// FREE             -> 0   
-		// TENTATIVE        -> 1
-		// BUSY             -> 2
-		// UNAVAILABLE, OOF -> 3 (OOF seems to mean "Out of office" but isn't documented)
-		s = s.replace("X-MICROSOFT-CDO-BUSYSTATUS:FREE", "X-MICROSOFT-CDO-BUSYSTATUS:0");
-		s = s.replace("X-MICROSOFT-CDO-BUSYSTATUS:TENTATIVE", "X-MICROSOFT-CDO-BUSYSTATUS:1");
-		s = s.replace("X-MICROSOFT-CDO-BUSYSTATUS:BUSY", "X-MICROSOFT-CDO-BUSYSTATUS:2");
-		s = s.replace("X-MICROSOFT-CDO-BUSYSTATUS:UNAVAILABLE", "X-MICROSOFT-CDO-BUSYSTATUS:3");
-		s = s.replace("X-MICROSOFT-CDO-BUSYSTATUS:OOF", "X-MICROSOFT-CDO-BUSYSTATUS:3");
+		lines = new ArrayList<String>(content.length()/32 + 1);
+		alarmdate = null;
+		start = 0;
 		
-		// do all cleanup of AALARM entries in separate function:
-		s = aAlarmCleanup(s,log);
+		while (start <= content.length()) {
+			a = content.indexOf(delim, start);
+			
+			if (a < 0)
+				a = content.length();
+			
+			s = content.substring(start, a);
+			start = a + delim.length();
+			
+			for (i = 0; i < VCALENDAR_REPLACEMENTS.length; i++) {
+				if (s.indexOf(VCALENDAR_REPLACEMENTS[i][0]) >= 0)
+					s = s.replace(VCALENDAR_REPLACEMENTS[i][0], VCALENDAR_REPLACEMENTS[i][1]);
+			}
+			
+			if (s.startsWith("AALARM")) {
+				// We simplify AALARM lines - see aAlarmCleanup(). If the line has no
+				// date, we use the one of the previous AALARM line, if any.
+				s = getAlarmDate(s, alarmdate);
+				
+				if (s == null)
+					continue;
+				
+				alarmdate = s;
+				s = "AALARM:" + alarmdate;
+			} else if (s.indexOf("encoding=QUOTED-PRINTABLE") >= 0) {
+				// We "uppercase" encoding=, otherwise, Funambol won't 
+				// even recognize it.
+				s = s.replace("encoding=QUOTED-PRINTABLE", "ENCODING=QUOTED-PRINTABLE");
+			}
+			
+			lines.add(s);
+		}
 		
-		// We "uppercase" encoding=, otherwise, Funambol won't 
-		// even recognize it.
-		s = s.replace("encoding=QUOTED-PRINTABLE", "ENCODING=QUOTED-PRINTABLE");
+		// Trailing empty lines are dropped
+		while (lines.size() > 0 && lines.get(lines.size()-1).length() == 0) {
+			lines.remove(lines.size()-1);
+		}
 		
 		// HACK: NextHaus SyncJe 2.32 does NOT fold lines properly. In order for
 		//       us to not break on this (well, not us but Funambol), we re-fold
-		//       the lines properly. This is _SLOW_ but can't be avoided for now.
-		buf = new StringBuffer();
-		lines = s.split(delim);
+		//       the lines properly. As an ATTENDEE line ending with = is joined
+		//       to the line following it, we need to walk backwards. We collect
+		//       the chunks and write them in order once we're done.
+		chunks = new ArrayList<String>(lines.size() * 2);
 		
-		for (i = lines.length-1; i >= 0; i--) {
+		for (i = lines.size()-1; i >= 0; i--) {
 			
-			s = lines[i];
+			s = lines.get(i);
 
 			// We strip the DTSTAMP attributes since SyncJe doesn't also like them
 			// very much...
@@ -99,24 +144,28 @@ public class SOGoSanitizer {
 			// empty RRULE for new events - and this confuses clients such as SyncJe.
 			if (s.startsWith("RRULE:") && s.length() == 6) continue;			
 			
-			buf.insert(0, delim);
-			buf.insert(0, s);
+			chunks.add(delim);
+			chunks.add(s);
 						
-			if (lines[i].length() > 0 && lines[i].charAt(0) != ' ') {
-				if (i >= 1 && (len = lines[i-1].length()) > 0 && lines[i-1].charAt(len-1) == '=') {
-					if (lines[i-1].startsWith("ATTENDEE")) {
-						s = lines[i-1];						
+			if (s.length() > 0 && s.charAt(0) != ' ') {
+				if (i >= 1 && (len = lines.get(i-1).length()) > 0 && lines.get(i-1).charAt(len-1) == '=') {
+					if (lines.get(i-1).startsWith("ATTENDEE")) {
 						// We strip the trailing = of the last line
-						s = s.substring(0, s.length()-1);
-						buf.insert(0, s);
+						chunks.add(lines.get(i-1).substring(0, len-1));
 						i--;
 					} else {
-						buf.insert(0, ' ');	
+						chunks.add(" ");
 					}
 				}
 			}
 		}
 		
+		buf = new StringBuffer(content.length() + key.length() + 16);
+		
+		for (i = chunks.size()-1; i >= 0; i--) {
+			buf.append(chunks.get(i));
+		}
+		
 		// HACK: Synthesis SyncML does NOT send UID fields and this prevents
 		//		 events from being modified by Mozilla Lightning. We add
 		//       it if not present based on our item key.
@@ -135,6 +184,73 @@ public class SOGoSanitizer {
 		return buf.toString();
 	}
 	
+	/**
+	 * Returns the date of an AALARM line, which is the first ;-delimited
+	 * chunk of the form name:date.
+	 * 
+	 * @param line
+	 * @param alarmdate the date to return if the line has none
+	 * @return
+	 */
+	private static String getAlarmDate(String line, String alarmdate) {
+		String chunk;
+		int a, b, c, start;
+		
+		start = 0;
+		
+		while (start <= line.length()) {
+			a = line.indexOf(';', start);
+			
+			if (a < 0)
+				a = line.length();
+			
+			chunk = line.substring(start, a);
+			start = a + 1;
+			
+			// We need exactly two non-empty parts, ignoring trailing colons
+			for (c = chunk.length(); c > 0 && chunk.charAt(c-1) == ':'; c--);
+			
+			b = chunk.indexOf(':');
+			
+			if (b < 0 || b >= c || chunk.indexOf(':', b+1) >= 0 && chunk.indexOf(':', b+1) < c)
+				continue;
+			
+			if (isAlarmDate(chunk, b+1, c))
+				return chunk.substring(b+1, c);
+		}
+		
+		return alarmdate;
+	}
+	
+	/**
+	 * 
+	 * @return true if the characters between start and end are
+	 *         of the form 20091225T124500, followed by any number of Z
+	 */
+	private static boolean isAlarmDate(String s, int start, int end) {
+		char c;
+		int i;
+		
+		if (end - start < 15)
+			return false;
+		
+		for (i = 0; i < end - start; i++) {
+			c = s.charAt(start + i);
+			
+			if (i == 8) {
+				if (c != 'T')
+					return false;
+			} else if (i > 14) {
+				if (c != 'Z')
+					return false;
+			} else if (c < '0' || c > '9') {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	
 	/*
 	 *  This is a rather brute force cleanup for AALARM lines.
 	 *	
@@ -283,25 +399,50 @@ public class SOGoSanitizer {
 		return ret;
 	}
 	
+	// Replacements done on every line of vCard input, in that order
+	private static final String[][] VCARD_REPLACEMENTS = {
+		// We replace:
+		// TEL;TYPE=PREF,WORK:+1234567890
+		// with:
+		// TEL;TYPE=PREF;TYPE=WORK:+1234567890
+		{"TYPE=PREF,WORK", "TYPE=PREF;TYPE=WORK"},
+		
+		// We replace:
+		// ;TYPE=work:
+		// with:
+		// ;TYPE=WORK:
+		// and same for "home", "cell", "fax" and "pager".
+		{";TYPE=work:", ";TYPE=WORK:"},
+		{";TYPE=home:", ";TYPE=HOME:"},
+		{";TYPE=cell:", ";TYPE=CELL:"},
+		{";TYPE=fax:", ";TYPE=FAX:"},
+		{";TYPE=pager:", ";TYPE=PAGER:"}
+	};
+	
 	/**
 	 * 
 	 * This method is used to cleanup stuff in the vCard before it's sent to the
 	 * SOGo database.
 	 * 
+	 * Lines are never copied before being written to the result, so that
+	 * large PHOTO properties are copied only once.
+	 * 
 	 * @param bytes
 	 * @param log
 	 * @return
 	 */
 	public static String sanitizevCardOutput(byte[] bytes, Contact c, SyncContext context, FunambolLogger log) {
-		String delim, lines[], givenname, fn, sn, s;
+		String content, delim, givenname, fn, sn;
+		String[][] replacements;
+		boolean b, iphone;
+		Replacer replacer;
 		StringBuffer buf;
-		boolean b, empty;
-		int x, y, i, j;
+		int lines[], count, start, end, i;
 		
-		buf = new StringBuffer(new String(bytes));
+		content = new String(bytes);
 		
 		// We check to see how do we split our lines, using \r\n or simply \n.
-		if (buf.toString().indexOf("\r\n") >= 0) {
+		if (content.indexOf("\r\n") >= 0) {
 			delim = "\r\n";
 		} else {
 			delim = "\n";
@@ -316,13 +457,20 @@ public class SOGoSanitizer {
 		if (fn == null || fn.trim().length() == 0)
 			fn = givenname + " " + sn;
 		
-	    lines = buf.toString().split(delim);
+		iphone = SOGoUtilities.isIPhone(context);
+		replacements = new String[][] {{"  ", delim}};
+		replacer = new Replacer(content, replacements);
+		
+	    lines = getLines(content, delim);
+	    count = lines.length/2;
 	    
-	    buf = new StringBuffer();
+	    buf = new StringBuffer(content.length() + 64);
 	    b = false;
 	    
-		for (i = 0; i < lines.length; i++) {
-
+		for (i = 0; i < count; i++) {
+			start = lines[2*i];
+			end = lines[2*i+1];
+			
 			// We strip empty properties - this is just brained
 			// but causes massive headache to all clients. We strip
 			// stuff like:
@@ -336,50 +484,37 @@ public class SOGoSanitizer {
 			//    AAQAAAABAAAAJgAAAAAAA6ABAAMAAAABAAEAAKACAAQAAAABAAAAQKADAAQAAAABAAAAQAAA
 			//    AAD/2wBDAAEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEBAQEB			
 			// FIXME: do that for calendar stuff too?
-		    empty = true;
-		    
-		    s = lines[i].trim();
-			x = s.indexOf(':');
-			y = s.length();
-			
-			for (j = x+1; j < y; j++)
-				if (s.charAt(j) != ';') {
-					empty = false;
-					break;
-				}
-			
+			//
 			// If empty, let's check for a folded line
 			// before deciding if we strip it.
-			if (empty && 
-				i < lines.length-2 &&
-				!(lines[i+1].startsWith(" ") || lines[i+1].startsWith("\t"))) {
+			if (isEmptyProperty(content, start, end) && 
+				i < count-2 &&
+				!(content.startsWith(" ", lines[2*i+2]) || content.startsWith("\t", lines[2*i+2]))) {
 				continue;
 			}
 			
-			// It looks like once the contact is merged, "\r\n " gets replaced with "   "
-			// (three spaces) which breaks the iPhone sync. So we replace things back
-			// to fix this.
-			if (SOGoUtilities.isIPhone(context) && s.toUpperCase().startsWith("PHOTO")) {
-				
-				// Check if we have a folded line, if so, we ignore the PHOTO issue
-				if (i+1 < lines.length && !lines[i+1].startsWith(" ")) {
-					lines[i] = lines[i].replaceAll("  ", delim);
-				}
-			}
-			
 			// We look for FN, if not there, we will add it so
 			// SOGo and Thunderbird will display cards correctly
-			if (lines[i].startsWith("FN:") || lines[i].startsWith("FN;"))
+			if (content.startsWith("FN:", start) || content.startsWith("FN;", start))
 				b = true;
 			
 			// If we reached the end and haven't seen it...
-			if (!b && i == lines.length-1) {
+			if (!b && i == count-1) {
 				buf.append("FN:");
 				buf.append(fn);
 				buf.append(delim);
 			}
 			
-			buf.append(lines[i]);
+			// It looks like once the contact is merged, "\r\n " gets replaced with "   "
+			// (three spaces) which breaks the iPhone sync. So we replace things back
+			// to fix this. If we have a folded line, we ignore the PHOTO issue.
+			if (iphone && startsWithIgnoreCase(content, start, end, "PHOTO") &&
+				i+1 < count && !content.startsWith(" ", lines[2*i+2])) {
+				replacer.append(buf, start, end);
+			} else {
+				buf.append(content, start, end);
+			}
+			
 			buf.append(delim);
 		}	
 		
@@ -395,55 +530,66 @@ public class SOGoSanitizer {
 	 * @return
 	 */
 	public static String sanitizevCardInput(byte[] bytes, SyncContext context, FunambolLogger log) {
-		String s, delim, email, lines[], prefs[] = {";TYPE=work:", ";TYPE=home:", ";TYPE=cell:", ";TYPE=fax:", ";TYPE=pager:"};
+		return sanitizevCardInput(bytes, (String[][])null, log);
+	}
+	
+	/**
+	 * 
+	 * This method is called prior to sending data back to mobile
+	 * devices. The optional replacements are done on every line once it's
+	 * sanitized, in the order in which they're specified, so that the
+	 * content is only scanned once.
+	 * 
+	 * @param bytes
+	 * @param replacements pairs of strings to replace and their replacement, or null
+	 * @param log
+	 * @return
+	 */
+	public static String sanitizevCardInput(byte[] bytes, String[][] replacements, FunambolLogger log) {
+		Replacer sanitizer, replacer;
+		boolean b;
+		String content, delim, s;
+		String[][] sanitizers;
 		StringBuffer buf;
-		boolean b, empty;
-		int x, y, i, j;
+		int lines[], count, start, end, i, j;
 		
-		buf = new StringBuffer(new String(bytes));
+		content = new String(bytes);
 		
 		// We check to see how do we split our lines, using \r\n or simply \n.
-		if (buf.toString().indexOf("\r\n") >= 0) {
+		if (content.indexOf("\r\n") >= 0) {
 			delim = "\r\n";
 		} else {
 			delim = "\n";
 		}
 		
-		// We replace:
-		// TEL;TYPE=PREF,WORK:+1234567890
-		// with:
-	    // TEL;TYPE=PREF;TYPE=WORK:+1234567890
-	    x = buf.indexOf("TYPE=PREF,WORK");
-	    
-	    while (x >= 0) {
-			buf.replace(x, x+14, "TYPE=PREF;TYPE=WORK");
-	    	x = buf.indexOf("TYPE=PREF,WORK");
-	    }
-	    
-	    // We replace:
-	    // ;TYPE=work:
-	    // with:
-	    // ;TYPE=WORK:
-	    // and same for "home" and "cell".
-	    for (i = 0; i < prefs.length; i++) {
-	    	x = buf.indexOf(prefs[i]);
-	    	
-	    	while (x> 0) {
-	    		buf.replace(x, x+prefs[i].length(), prefs[i].toUpperCase());
-	    		x = buf.indexOf(prefs[i], x+1);
-	    	}
-	    }
-	    	    
+		// A type found at the very beginning of the content has never
+		// been replaced, so we keep it that way.
+		sanitizers = VCARD_REPLACEMENTS;
+		
+		for (i = 1; i < VCARD_REPLACEMENTS.length; i++) {
+			if (content.startsWith(VCARD_REPLACEMENTS[i][0])) {
+				sanitizers = new String[VCARD_REPLACEMENTS.length-1][];
+				
+				for (j = 0; j < VCARD_REPLACEMENTS.length-1; j++) {
+					sanitizers[j] = VCARD_REPLACEMENTS[j < i ? j : j+1];
+				}
+			}
+		}
+		
+		sanitizer = new Replacer(content, sanitizers);
+		replacer = new Replacer(content, replacements);
 	    
 		// We check if N: is present. It's a requirement in vCard 2.1 and some clients will break
 		// (like Nexthaus SyncJe) if that property isn't present.
-	    lines = buf.toString().split(delim);
-	    
-	    buf = new StringBuffer();
-	    email = null;
+		lines = getLines(content, delim);
+		count = lines.length/2;
+		
+	    buf = new StringBuffer(content.length() + 64);
 	    b = false;
 	    
-		for (i = 0; i < lines.length; i++) {
+		for (i = 0; i < count; i++) {
+			start = lines[2*i];
+			end = lines[2*i+1];
 			
 			// We strip empty properties - this is just brained
 			// but causes massive headache to all clients. We strip
@@ -451,71 +597,206 @@ public class SOGoSanitizer {
 			//   ADR: and 
 			//   ADR;HOME:;;;;;;
 			// FIXME: do that for calendar stuff too?
-		    empty = true;
-			s = lines[i].trim(); 
-			x = s.indexOf(':');
-			y = s.length();
-			
-			for (j = x+1; j < y; j++)
-				if (s.charAt(j) != ';') {
-					empty = false;
-					break;
-				}
-			
+			//
 			// If empty, let's check for a folded line
 			// before deciding if we strip it.
-			if (empty && 
-				i < lines.length-2 &&
-				!(lines[i+1].startsWith(" ") || lines[i+1].startsWith("\t"))) {
+			if (isEmptyProperty(content, start, end) && 
+				i < count-2 &&
+				!(content.startsWith(" ", lines[2*i+2]) || content.startsWith("\t", lines[2*i+2]))) {
 				continue;
 			}
 			
 			// We look for FN, if not there, we will add it so
 			// SOGo and Thunderbird will display cards correctly
-			if (lines[i].startsWith("FN:") || lines[i].startsWith("FN;"))
+			if (content.startsWith("FN:", start) || content.startsWith("FN;", start))
 				b = true;
 
 			
-			if (lines[i].startsWith("N:") || lines[i].startsWith("N;"))
+			if (content.startsWith("N:", start) || content.startsWith("N;", start))
 				b = true;
 			
-			try {
-				if (lines[i].startsWith("EMAIL")) {
-					x  = lines[i].indexOf('@');
-					
-					if (x > 0) {
-						char ch;
-						int c;
-					
-						for (c = x-1; c >= 0; c--) {
-							ch = lines[i].charAt(c);
-							if (!Character.isLetterOrDigit(ch) && ch != '.') {
-								email = lines[i].substring(c+1, c);
-								break;
-							}
-						}
-					}
-				}
-			} catch (Exception e) {
-				email = null;
-			}
-			
 			// If we reached the end and haven't seen it...
-			if (!b && i == lines.length-2) {
-				buf.append("N:");
-				if (email != null) {
-					buf.append(email);
-				} else {
-					buf.append("Unknown");
-				}
+			if (!b && i == count-2) {
+				buf.append("N:Unknown");
 				buf.append(delim);
 			}
 			
-			buf.append(lines[i]);
+			// Lines needing no sanitizing, such as those holding a PHOTO,
+			// are written directly.
+			if (sanitizer.find(start, end) < 0) {
+				replacer.append(buf, start, end);
+			} else {
+				s = replace(content.substring(start, end), sanitizers);
+				new Replacer(s, replacements).append(buf, 0, s.length());
+			}
+			
 			buf.append(delim);
 		}
 		
-		log.info("Sanitized content: " + buf.toString());
+		if (log.isTraceEnabled())
+			log.trace("Sanitized content: " + buf.toString());
+		
+		return buf.toString();
+	}
+	
+	/**
+	 * Returns the bounds of the lines of the content, as String.split()
+	 * would split them. Trailing empty lines are dropped.
+	 * 
+	 * @param s
+	 * @param delim
+	 * @return the start and the end of each line
+	 */
+	private static int[] getLines(String s, String delim) {
+		int lines[], bounds[], count, start, a;
+		
+		bounds = new int[64];
+		count = 0;
+		start = 0;
+		
+		while (true) {
+			a = s.indexOf(delim, start);
+			
+			// No delimiter at all - the whole content is our only line
+			if (a < 0 && count == 0)
+				return new int[] {0, s.length()};
+			
+			if (count+2 > bounds.length) {
+				lines = new int[bounds.length*2];
+				System.arraycopy(bounds, 0, lines, 0, count);
+				bounds = lines;
+			}
+			
+			bounds[count++] = start;
+			bounds[count++] = (a < 0 ? s.length() : a);
+			
+			if (a < 0)
+				break;
+			
+			start = a + delim.length();
+		}
+		
+		while (count > 0 && bounds[count-1] == bounds[count-2])
+			count -= 2;
+		
+		lines = new int[count];
+		System.arraycopy(bounds, 0, lines, 0, count);
+		
+		return lines;
+	}
+	
+	/**
+	 * 
+	 * @return true if the trimmed line has nothing but semicolons after its first colon
+	 */
+	private static boolean isEmptyProperty(String s, int start, int end) {
+		int i;
+		
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		
+		while (end > start && s.charAt(end-1) <= ' ')
+			end--;
+		
+		for (i = start; i < end && s.charAt(i) != ':'; i++);
+		
+		if (i == end)
+			i = start - 1;
+		
+		for (i = i+1; i < end; i++)
+			if (s.charAt(i) != ';')
+				return false;
+		
+		return true;
+	}
+	
+	/**
+	 * 
+	 * @return true if the trimmed line starts with the prefix, ignoring case
+	 */
+	private static boolean startsWithIgnoreCase(String s, int start, int end, String prefix) {
+		while (start < end && s.charAt(start) <= ' ')
+			start++;
+		
+		while (end > start && s.charAt(end-1) <= ' ')
+			end--;
+		
+		return (end - start >= prefix.length() && s.regionMatches(true, start, prefix, 0, prefix.length()));
+	}
+	
+	/**
+	 * This class does string replacements on the lines of a content. The
+	 * position of the next occurrence of each string is remembered, so that
+	 * the content is scanned once per string whatever the number of lines.
+	 * 
+	 * At every position, the first of the replacements whose string is found
+	 * there is done. The strings must not contain line breaks.
+	 */
+	private static class Replacer {
+		private String[][] _replacements;
+		private String _s;
+		private int[] _next;
+		private int _position;
+		
+		/**
+		 * 
+		 * @param s
+		 * @param replacements pairs of strings to replace and their replacement, or null
+		 */
+		Replacer(String s, String[][] replacements) {
+			_s = s;
+			_replacements = (replacements != null ? replacements : new String[0][]);
+			_next = new int[_replacements.length];
+			
+			// We don't know yet where the strings are
+			Arrays.fill(_next, -2);
+		}
+		
+		/**
+		 * 
+		 * @return the first replacement to do between start and end, or -1 if none
+		 */
+		int find(int start, int end) {
+			int i, j;
+			
+			j = -1;
+			_position = end;
+			
+			for (i = 0; i < _replacements.length; i++) {
+				// -1 means the string isn't found past the last position we looked at
+				if (_next[i] != -1 && _next[i] < start)
+					_next[i] = _s.indexOf(_replacements[i][0], start);
+				
+				if (_next[i] >= 0 && _next[i] < _position) {
+					_position = _next[i];
+					j = i;
+				}
+			}
+			
+			return j;
+		}
+		
+		/**
+		 * Appends the characters between start and end, doing the replacements.
+		 */
+		void append(StringBuffer buf, int start, int end) {
+			int j;
+			
+			while ((j = find(start, end)) >= 0) {
+				buf.append(_s, start, _position);
+				buf.append(_replacements[j][1]);
+				start = _position + _replacements[j][0].length();
+			}
+			
+			buf.append(_s, start, end);
+		}
+	}
+	
+	private static String replace(String s, String[][] replacements) {
+		StringBuffer buf;
+		
+		buf = new StringBuffer(s.length() + 16);
+		new Replacer(s, replacements).append(buf, 0, s.length());
 		
 		return buf.toString();
 	}
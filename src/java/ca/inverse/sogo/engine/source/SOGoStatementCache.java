@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import com.funambol.framework.logging.FunambolLogger;
+
+/**
+ * This class caches the statements used during a sync session.
+ *
+ * The SQL of the statements we use for every item is defined by templates in
+ * which {table} is replaced by the name of the table to use. The resulting
+ * SQL is built once and shared by all sync sessions.
+ *
+ * Each sync session has its own instance of this class, which keeps the
+ * prepared statements for as long as the session holds its connection.
+ * Statements obtained from here must NOT be closed by the caller - they are
+ * all closed by close() at the end of the session.
+ */
+public class SOGoStatementCache {
+
+	// Templates for the content tables
+	public static final String SELECT_CONTENT = "SELECT c_content FROM {table} WHERE c_name = ?";
+	public static final String INSERT_CONTENT = "INSERT INTO {table} (c_name, c_content, c_creationdate, c_lastmodified, c_version) VALUES (?, ?, ?, ?, ?)";
+	public static final String UPDATE_CONTENT = "UPDATE {table} SET c_content = ?, c_lastmodified = ?, c_version = COALESCE(c_version, 0) + 1 WHERE c_name = ?";
+	public static final String MARK_DELETED = "UPDATE {table} SET c_deleted = 1, c_lastmodified = ? WHERE c_name = ?";
+	public static final String DELETE_CONTENT = "DELETE FROM {table} WHERE c_name = ?";
+	public static final String DELETE_ORPHAN = "DELETE FROM {table} WHERE c_name = ? AND NOT EXISTS (SELECT 1 FROM {table}_quick WHERE c_name = ?)";
+
+	// Templates reading the content along with the quick table entry - c_name
+	// is null if the entry doesn't exist in the quick table
+	public static final String SELECT_CONTACT_CONTENT = "SELECT c.c_content, q.c_name FROM {table} c LEFT JOIN {table}_quick q ON q.c_name = c.c_name WHERE c.c_name = ?";
+	public static final String SELECT_CALENDAR_CONTENT = "SELECT c.c_content, q.c_name, q.c_classification FROM {table} c LEFT JOIN {table}_quick q ON q.c_name = c.c_name WHERE c.c_name = ?";
+
+	// Templates for the quick tables
+	public static final String SELECT_QUICK = "SELECT c_name FROM {table} WHERE c_name = ?";
+	public static final String SELECT_CLASSIFICATION = "SELECT c_classification FROM {table} WHERE c_name = ?";
+	public static final String DELETE_QUICK = "DELETE FROM {table} WHERE c_name = ?";
+	public static final String INSERT_EVENT_QUICK = "INSERT INTO {table} (c_name, c_uid, c_startdate, c_enddate, c_title, c_isallday, c_classification, c_status, c_priority, c_location, c_partmails, c_partstates, c_component, c_isopaque, c_iscycle, c_cycleinfo, c_category) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String UPDATE_EVENT_QUICK = "UPDATE {table} SET c_startdate = ?, c_enddate = ?, c_title = ?, c_isallday = ?, c_location = ?, c_iscycle = ?, c_cycleinfo = ?, c_classification = ?, c_isopaque = ?, c_category = ? WHERE c_name = ?";
+	public static final String SELECT_CALENDAR_TWINS = "SELECT c_startdate, c_enddate, c_title, c_name FROM {table} WHERE c_component = ?";
+	public static final String INSERT_TASK_QUICK = "INSERT INTO {table} (c_name, c_uid, c_startdate, c_enddate, c_title, c_isallday, c_iscycle, c_classification, c_status, c_priority, c_location, c_partmails, c_partstates, c_component, c_isopaque) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String UPDATE_TASK_QUICK = "UPDATE {table} SET c_startdate = ?, c_enddate = ?, c_title = ?, c_location = ?, c_classification = ?, c_status = ?, c_priority = ? WHERE c_name = ?";
+	public static final String INSERT_CONTACT_QUICK = "INSERT INTO {table} (c_name, c_givenname, c_cn, c_sn, c_o, c_ou, c_telephonenumber, c_mail, c_l, c_component) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	public static final String UPDATE_CONTACT_QUICK = "UPDATE {table} SET c_givenname = ?, c_cn = ?, c_sn = ?, c_o = ?, c_ou = ?, c_telephonenumber = ?, c_mail = ?, c_l = ? WHERE c_name = ?";
+	public static final String SELECT_CONTACT_TWINS = "SELECT c_cn, c_mail, c_o, c_name FROM {table}";
+
+	// Templates for the ACL tables
+	public static final String SELECT_ROLES = "SELECT c_role FROM {table} WHERE c_uid = ? AND c_object = ?";
+
+	// The SQL built from our templates, keyed by "template table"
+	private static SOGoCache<String, String> _sql = new SOGoCache<String, String>(4096, 86400000);
+
+	// Private ivars
+	private HashMap<String, PreparedStatement> _statements;
+	private long _prepared;
+	private long _reused;
+
+	public SOGoStatementCache() {
+		_statements = new HashMap<String, PreparedStatement>();
+	}
+
+	/**
+	 * Returns the SQL of the template for the specified table.
+	 *
+	 * @param template
+	 * @param table
+	 * @return
+	 */
+	public static String getSQL(String template, String table) {
+		String key, sql;
+
+		key = template + " " + table;
+		sql = _sql.get(key);
+
+		if (sql == null) {
+			sql = template.replace("{table}", table);
+			_sql.put(key, sql);
+		}
+
+		return sql;
+	}
+
+	/**
+	 * Returns a prepared statement for the template and the table.
+	 *
+	 * @param connection
+	 * @param template
+	 * @param table
+	 * @return
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(Connection connection, String template, String table) throws SQLException {
+		return prepare(connection, getSQL(template, table));
+	}
+
+	/**
+	 * Returns a prepared statement for the SQL, preparing it
+	 * only if it wasn't already during the session.
+	 *
+	 * @param connection
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepare(Connection connection, String sql) throws SQLException {
+		PreparedStatement s;
+
+		s = _statements.get(sql);
+
+		if (s == null) {
+			s = connection.prepareStatement(sql);
+			_statements.put(sql, s);
+			_prepared++;
+		} else {
+			_reused++;
+		}
+
+		return s;
+	}
+
+	/**
+	 * Closes all statements. Must be called before the
+	 * connection is given back to the pool.
+	 *
+	 * @param log
+	 */
+	public void close(FunambolLogger log) {
+		Iterator<PreparedStatement> it;
+
+		it = _statements.values().iterator();
+
+		while (it.hasNext()) {
+			try {
+				it.next().close();
+			} catch (SQLException e) {
+				log.info("Couldn't close statement: " + e.toString());
+			}
+		}
+
+		log.info("Closed " + _statements.size() + " statements - prepared: " + _prepared + " reused: " + _reused);
+
+		_statements.clear();
+	}
+}
@@ -55,6 +55,8 @@ import com.funambol.framework.tools.beans.LazyInitBean;
 import com.funambol.common.pim.contact.Contact;
 import com.funambol.common.pim.contact.Email;
 import com.funambol.common.pim.calendar.*;
+import com.funambol.common.pim.converter.ConverterException;
+import com.funambol.common.pim.icalendar.ParseException;
 
 /**
  */
@@ -81,6 +83,9 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	public static final int X_S4J_SIFE = 6;
 	public static final int X_S4J_SIFT = 7;
 
+	// The number of rows fetched at once when enumerating keys
+	private static final int FETCH_SIZE = 500;
+
 	// Private ivars
 	private Connection _connection = null;
 	private SyncContext _context = null;
@@ -88,9 +93,15 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	private String _username = null;
 	private String _password = null;
 	private String _charset = null;
+	private SOGoDeviceProfile _device_profile = null;
 	private String _url = null;
 	private int _source_type;
 	
+	// Private ivars used to configure the connection pool
+	private int _max_connections = SOGoConnectionPool.DEFAULT_MAX_CONNECTIONS;
+	private long _connection_max_wait = SOGoConnectionPool.DEFAULT_MAX_WAIT;
+	private long _connection_max_idle_time = SOGoConnectionPool.DEFAULT_MAX_IDLE_TIME;
+	
 	
 	// Private ivars used on a per-user basis to
 	// obtain the information from SOGo
@@ -105,6 +116,54 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	@SuppressWarnings(value={"unchecked"})
 	private HashMap _sync_tags_location;
 	
+	// Private ivar used to keep the user profiles for the whole sync session
+	private HashMap<String, SOGoUserProfile> _profiles;
+	
+	// Private ivar used to keep the roles read from the ACL tables for the
+	// whole sync session, keyed by "table object"
+	private HashMap<String, List<String>> _acl_roles;
+	
+	// Private ivar used to keep the classification of shared calendar items
+	// read along with their content, keyed by "table c_name"
+	private HashMap<String, Integer> _classifications;
+	
+	// Private ivar used to keep the keys of the items found in a content table
+	// but not in its quick table, keyed by table. They are deleted on commit.
+	private LinkedHashMap<String, List<String>> _orphans;
+	
+	// Private ivars used to commit the items sent by the device in batches
+	private SOGoWriteBatch _writes;
+	private int _write_batch_size = SOGoWriteBatch.DEFAULT_SIZE;
+	
+	// Private ivars used to know, without querying every collection, where
+	// an item is. Keys (c_name) are mapped to their table and tables to their tag.
+	private HashMap<String, String> _key_locations;
+	private HashMap<String, String> _location_tags;
+	private boolean _key_locations_complete;
+	
+	// Private ivar used to enumerate the items of all collections using one query
+	private boolean _union_queries = true;
+	
+	// Private ivars used to skip the collections in which nothing changed since
+	// the last sync. Collections are mapped to the last modification date of their items.
+	private HashMap<String, Long> _last_modified;
+	private boolean _skip_unchanged_collections = true;
+	
+	// Private ivars used to find twin items, loaded when first needed
+	private SOGoTwinIndex _contact_twins;
+	private HashMap<String, SOGoTwinIndex> _calendar_twins;
+	
+	// Private ivars used to reuse the item parsed during twin detection
+	private CalendarData _calendar_data;
+	private byte[] _calendar_data_content;
+	
+	// Private ivar used to reuse the prepared statements during the sync session
+	private SOGoStatementCache _statements;
+	
+	// Private ivars used to prefetch the content of the enumerated items
+	private boolean _prefetch_items = true;
+	private SOGoItemBuffer _item_buffer;
+	
 	
 	/**
 	 * This is the default constructor to build an AbstractSyncSource instance.
@@ -178,19 +237,37 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		// We first reset everything
 		super.beginSync(context);
 
-		try  {
-			userid = ((SOGoUser)context.getPrincipal().getUser()).getUserID();
-		} catch (Exception e) {
-			userid = context.getPrincipal().getUsername();
-		}
+		userid = getUserID(context);
 		_context = context;
+		_profiles = new HashMap<String, SOGoUserProfile>();
+		_acl_roles = new HashMap<String, List<String>>();
+		_classifications = new HashMap<String, Integer>();
+		_orphans = new LinkedHashMap<String, List<String>>();
+		_writes = new SOGoWriteBatch(_write_batch_size);
+		_last_modified = null;
+		_item_buffer = new SOGoItemBuffer(_source_type != SOGO_CONTACT);
+		_statements = new SOGoStatementCache();
+		_contact_twins = null;
+		_calendar_twins = new HashMap<String, SOGoTwinIndex>();
+		_calendar_data = null;
+		_calendar_data_content = null;
+		_key_locations = new HashMap<String, String>();
+		_location_tags = new HashMap<String, String>();
+		_key_locations_complete = false;
+		
+		// On slow syncs, we make sure we work with the current user's profile and folders
+		if (_context.getSyncMode() == AlertCode.SLOW) {
+			SOGoUserProfile.invalidate(userid);
+			SOGoUserProfile.invalidate(context.getPrincipal().getUsername());
+			SOGoFolderLocations.invalidate(userid);
+			SOGoFolderLocations.invalidate(context.getPrincipal().getUsername());
+		}
 	
 		// We try to load our JDBC driver and fetch our table names
 		try {
-			ResultSet rs;
-			Statement s;
+			String[] location;
 
-			_connection = SOGoUtilities.initDatabaseDriver(this, _log);
+			_connection = SOGoConnectionPool.getConnection(this, _log);
 			
 			_log.info("Context's user ID: " + userid);
 			_log.info("Context sync mode: " + _context.getSyncMode());
@@ -203,35 +280,33 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 			_sync_tags = SOGoUtilities.getSyncTags(this, _source_type, context, userid, _log);
 			_sync_tags_location = SOGoUtilities.getSyncTagsLocation(this, context, _sync_tags, _log);
 			
+			for (Object tag : _sync_tags_location.keySet())
+				_location_tags.put((String)_sync_tags_location.get(tag), (String)tag);
+			
 			// We fetch the table names used for the synchronization. 
 			// Start with the Contact table / quick table
- 			s = _connection.createStatement();
- 			rs = s.executeQuery("SELECT c_location, c_quick_location FROM sogo_folder_info WHERE c_path2 = '" + userid + "' AND c_path3 = 'Contacts' and c_path4 = 'personal'");
-		
- 			if (rs.next()) {
- 				_contact_table = rs.getString(1).substring(rs.getString(1).lastIndexOf('/')+1);
- 				_contact_quick_table = rs.getString(2).substring(rs.getString(2).lastIndexOf('/')+1);
- 			}
- 			
- 			rs.close();
- 			
- 			// Then, initialize the Calendar table / quick table
- 			rs = s.executeQuery("SELECT c_location FROM sogo_folder_info WHERE c_path2 = '" + userid + "' AND c_path3 = 'Calendar' and c_path4 = 'personal'");
- 			
- 			if (rs.next()) {
- 				_calendar_table = rs.getString(1).substring(rs.getString(1).lastIndexOf('/')+1);
- 			}
- 			
- 			rs.close();
- 			s.close();
- 					
+			location = SOGoFolderLocations.getPersonalLocation(this, userid, "Contacts", _log);
+			
+			if (location != null) {
+				_contact_table = location[0];
+				_contact_quick_table = location[1];
+			}
+			
+			// Then, initialize the Calendar table
+			location = SOGoFolderLocations.getPersonalLocation(this, userid, "Calendar", _log);
+			
+			if (location != null) {
+				_calendar_table = location[0];
+			}
+					
 		} catch (SQLException e) {
 			_log.info("Couldn't connect to the database: " + e.toString());
 		}
 	
-		_charset = context.getPrincipal().getDevice().getCharset();
+		_device_profile = SOGoDeviceProfile.getProfile(context);
+		_charset = _device_profile.getCharset();
 		_log.info("Device's charset: " + _charset);
-		_log.info("Device's timezone: " + context.getPrincipal().getDevice().getTimeZone());
+		_log.info("Device's timezone: " + _device_profile.getTimeZone());
 	}
 	
 	/**
@@ -239,9 +314,79 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	 */
     public void commitSync() throws SyncSourceException {
     	_log.info("In commitSync()...");
+    	flushWrites();
+    	deleteOrphans();
     	super.commitSync();
     }
 	
+	/**
+	 * Remembers that the item is in the content table but not in the quick
+	 * table. Such items are deleted from the content table by deleteOrphans().
+	 * 
+	 * @param table_name
+	 * @param key the encoded key (c_name)
+	 */
+	private void addOrphan(String table_name, String key) {
+		List<String> keys;
+		
+		keys = _orphans.get(table_name);
+		
+		if (keys == null) {
+			keys = new ArrayList<String>();
+			_orphans.put(table_name, keys);
+		}
+		
+		if (!keys.contains(key))
+			keys.add(key);
+	}
+	
+	/**
+	 * Deletes, using one batch per table, the items found in a content table
+	 * but not in its quick table during the sync session. Items that got a
+	 * quick table entry in the meantime are left alone.
+	 */
+	private void deleteOrphans() {
+		Iterator<String> it;
+		PreparedStatement s;
+		List<String> keys;
+		String table_name;
+		int i;
+		
+		if (_orphans.size() == 0)
+			return;
+		
+		try {
+			it = _orphans.keySet().iterator();
+			
+			while (it.hasNext()) {
+				table_name = it.next();
+				keys = _orphans.get(table_name);
+				s = prepareStatement(SOGoStatementCache.DELETE_ORPHAN, table_name);
+				
+				for (i = 0; i < keys.size(); i++) {
+					s.setString(1, keys.get(i));
+					s.setString(2, keys.get(i));
+					s.addBatch();
+				}
+				
+				s.executeBatch();
+				_log.info("Deleted " + keys.size() + " orphaned entries from " + table_name);
+			}
+			
+			_connection.commit();
+		} catch (SQLException e) {
+			_log.error("Exception occured in deleteOrphans(): " + e.toString(), e);
+			
+			try {
+				_connection.rollback();
+			} catch (SQLException e2) {
+				_log.error("Exception occured in deleteOrphans(): " + e2.toString(), e2);
+			}
+		}
+		
+		_orphans.clear();
+	}
+	
 	/**
 	 * 
 	 */
@@ -250,13 +395,17 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		
 		_log.info("In endSync()...");
 		
+		_item_buffer.clear();
+		
 		if (_connection != null) {
-			try {
-				_connection.close();
-				_log.info("Closed the database connection.");
-			} catch (SQLException e) {
-				_log.info("Couldn't close the database connection: " + e.toString());
-			}	
+			// In case commitSync() wasn't called
+			flushWrites();
+			deleteOrphans();
+			_log.info("Writes: " + _writes);
+			_statements.close(_log);
+			SOGoConnectionPool.releaseConnection(this, _connection, _log);
+			_connection = null;
+			_log.info("Released the database connection - pool " + SOGoConnectionPool.getPool(this));
 		} else {
 			_log.info("Database connection never opened - skipping the close operation");
 		}
@@ -266,53 +415,9 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	 * This method is used to retrieve all sync items from the SOGo database.
 	 */
 	public SyncItemKey[] getAllSyncItemKeys() throws SyncSourceException {
-		Vector<String> collections;
-		Vector<SyncItemKey> v;
-		ResultSet rs = null;
-		Statement s = null;
-		
 		_log.info("getAllSyncItemKeys()");		
 
-		collections = this.getSyncCollections();
-		v = new Vector<SyncItemKey>();
-		
-		try {
-			SyncItemKey key;
-			int i;
-			
-			s = _connection.createStatement();
-			
-			for (i = 0; i < collections.size(); i++) {
-				switch (_source_type) {
-				case SOGO_CAL:
-					rs = s.executeQuery("SELECT c_name FROM " + collections.get(i) + "_quick" + " WHERE c_component = 'vevent' OR c_component = 'vtodo'");	
-					break;
-				case SOGO_EVENT:
-					rs = s.executeQuery("SELECT c_name FROM " + collections.get(i) + "_quick" + " WHERE c_component = 'vevent'");	
-					break;
-				case SOGO_TODO:
-					rs = s.executeQuery("SELECT c_name FROM " + collections.get(i) + "_quick" + " WHERE c_component = 'vtodo'");
-					break;
-				default:
-					rs = s.executeQuery("SELECT c_name FROM " + collections.get(i) + "_quick" + " WHERE c_component = 'vcard'");
-				}
-						
-				while (rs.next()) {		
-					key = new SyncItemKey(SOGoKey.decodeString(rs.getString(1)));
-					_log.info("getAllSyncItemKeys(): " + key + "(" + collections.get(i) + ")");
-					v.add(key);
-				}
-				
-				rs.close();				
-			}
-
-			s.close();
-			
-		} catch (Exception e) {
-			_log.error("Exception during getAllSyncItemKeys(): " + e.toString(), e);
-		}
-		
-		return v.toArray(new SyncItemKey[0]);
+		return getSyncItemKeys(SOGoQueryBuilder.ALL_ITEMS, 0, 0, "getAllSyncItemKeys");
 	}
 
 	/*
@@ -321,58 +426,14 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	public SyncItemKey[] getNewSyncItemKeys(Timestamp since, Timestamp until)
 			throws SyncSourceException {
 		
-		Vector<String> collections;
-		PreparedStatement s = null;
-		ResultSet rs = null;
-		Vector<SyncItemKey> v;
 		long start, end;
 		
 		start = (long)(since.getTime()/1000);
 		end = (long)(until.getTime()/1000);
 		
-		collections = this.getSyncCollections();
-		v = new Vector<SyncItemKey>();
-		
 		_log.info("getNewItemKeys(" + since + "(" + start + "), " + until + "(" + end + "))");
 		
-		try {
-			SyncItemKey key;
-			int i;
-			
-			for (i = 0; i < collections.size(); i++) {
-				switch (_source_type) {
-				case SOGO_CAL:
-					s = _connection.prepareStatement("SELECT " + collections.get(i) + ".c_name FROM " + collections.get(i)  + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i)  + ".c_creationdate >= ? AND " + collections.get(i)  + ".c_creationdate <= ? AND " + collections.get(i)  + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND ( " + collections.get(i) + "_quick" + ".c_component = 'vevent' OR " + collections.get(i) + "_quick" + ".c_component = 'vtodo' ) AND " + collections.get(i)  + ".c_creationdate = " + collections.get(i)  + ".c_lastmodified ORDER BY " + collections.get(i)  + ".c_creationdate");
-					break;
-				case SOGO_EVENT:
-					s = _connection.prepareStatement("SELECT " + collections.get(i) + ".c_name FROM " + collections.get(i)  + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i)  + ".c_creationdate >= ? AND " + collections.get(i)  + ".c_creationdate <= ? AND " + collections.get(i)  + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND " + collections.get(i) + "_quick" + ".c_component = 'vevent' AND " + collections.get(i)  + ".c_creationdate = " + collections.get(i)  + ".c_lastmodified ORDER BY " + collections.get(i)  + ".c_creationdate");
-					break;
-				case SOGO_TODO:
-					s = _connection.prepareStatement("SELECT " + collections.get(i)  + ".c_name FROM " + collections.get(i)  + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i)  + ".c_creationdate >= ? AND " + collections.get(i)  + ".c_creationdate <= ? AND " + collections.get(i)  + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND " + collections.get(i) + "_quick" + ".c_component = 'vtodo' AND " + collections.get(i)  + ".c_creationdate = " + collections.get(i)  + ".c_lastmodified ORDER BY " + collections.get(i)  + ".c_creationdate");
-					break;
-				default:
-					s = _connection.prepareStatement("SELECT " + collections.get(i)  + ".c_name FROM " + collections.get(i)  + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i)  + ".c_creationdate >= ? AND " + collections.get(i)  + ".c_creationdate <= ? AND " + collections.get(i)  + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND " + collections.get(i) + "_quick" + ".c_component = 'vcard' AND " + collections.get(i)  + ".c_creationdate = " + collections.get(i)  + ".c_lastmodified ORDER BY " + collections.get(i)  + ".c_creationdate");
-				}
-				
-				s.setLong(1, start);
-				s.setLong(2, end);
-				rs = s.executeQuery();
-				
-				while (rs.next()) {
-					key = new SyncItemKey(SOGoKey.decodeString(rs.getString(1)));
-					_log.info("getNewSyncItemKeys(): " + key + "(" + collections.get(i) + ")");
-					v.add(key);
-				}
-				
-				rs.close();
-				s.close();
-			}
-
-		} catch (Exception e) {
-			_log.error("Exception during getNewSyncItemsKeys(): " + e.toString(), e);
-		}
-		
-		return v.toArray(new SyncItemKey[0]);	
+		return getSyncItemKeys(SOGoQueryBuilder.NEW_ITEMS, start, end, "getNewSyncItemKeys");
 	}
 
 	/*
@@ -391,54 +452,14 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	public SyncItemKey[] getDeletedSyncItemKeys(Timestamp since, Timestamp until)
 			throws SyncSourceException {
 		
-		Vector<String> collections;
-		PreparedStatement s = null;
-		ResultSet rs = null;
-		Vector<SyncItemKey> v;
 		long start, end;
 		
 		start = (long)(since.getTime()/1000);
 		end = (long)(until.getTime()/1000);
 		
-		collections = this.getSyncCollections();
-		v = new Vector<SyncItemKey>();
-		
 		_log.info("getDeletedItemKeys(" + since + "(" + start + "), " + until + "(" + end + "))");
 		
-		
-		try {
-			SyncItemKey key;
-			int i;
-			
-			for (i = 0; i < collections.size(); i++) {
-				switch (_source_type) {
-				case SOGO_CAL:
-				case SOGO_EVENT:
-				case SOGO_TODO:
-					s = _connection.prepareStatement("SELECT c_name FROM " + collections.get(i) + " WHERE c_deleted = 1 AND c_lastmodified >= ? AND c_lastmodified <= ? ORDER BY c_lastmodified");
-					break;
-				default:
-					s = _connection.prepareStatement("SELECT c_name FROM " + collections.get(i) + " WHERE c_deleted = 1 AND c_lastmodified >= ? AND c_lastmodified <= ? ORDER BY c_lastmodified");		
-				}
-				
-				s.setLong(1, start);
-				s.setLong(2, end);
-				rs = s.executeQuery();
-				
-				while (rs.next()) {
-					key = new SyncItemKey(SOGoKey.decodeString(rs.getString(1)));
-					_log.info("getDeletedSyncItemKeys(): " + key + "(" + collections.get(i) + ")");
-					v.add(key);
-				}
-				
-				rs.close();
-				s.close();
-			}
-		} catch (Exception e) {
-			_log.error("Exception during getDeletedSyncItemsKeys(): " + e.toString(), e);
-		}
-		
-		return v.toArray(new SyncItemKey[0]);	
+		return getSyncItemKeys(SOGoQueryBuilder.DELETED_ITEMS, start, end, "getDeletedSyncItemKeys");
 	}
 
 	/*
@@ -447,66 +468,191 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	public SyncItemKey[] getUpdatedSyncItemKeys(Timestamp since, Timestamp until)
 			throws SyncSourceException {
 
-		Vector<String> collections;
-		PreparedStatement s = null;
-		ResultSet rs = null;
-		Vector<SyncItemKey> v;
 		long start, end;
 		
 		start = (long)(since.getTime()/1000);
 		end = (long)(until.getTime()/1000);
-		
-		collections = this.getSyncCollections();
-		v = new Vector<SyncItemKey>();
 	
 		_log.info("getUpdatedSyncItemKeys(" + since + "(" + start + "), " + until + "(" + end + "))");
 		
+		return getSyncItemKeys(SOGoQueryBuilder.UPDATED_ITEMS, start, end, "getUpdatedSyncItemKeys");
+	}
+	
+	/**
+	 * This method is used to enumerate the keys of the items of all
+	 * the collections we synchronize. Unless disabled, all collections
+	 * are queried at once using a UNION ALL query. Otherwise, we issue
+	 * one query per collection.
+	 * 
+	 * @param operation One of the SOGoQueryBuilder enumeration types
+	 * @param start
+	 * @param end
+	 * @param method The calling method, used for logging purposes
+	 * @return
+	 */
+	private SyncItemKey[] getSyncItemKeys(int operation, long start, long end, String method) {
+		ArrayList<SyncItemKey> v;
+		String[] collections;
+		PreparedStatement s;
+		ResultSet rs;
+		boolean trace;
+		int[] counts;
+		
+		collections = this.getSyncCollections().toArray(new String[0]);
+		counts = new int[collections.length];
+		v = new ArrayList<SyncItemKey>(256);
+		trace = _log.isTraceEnabled();
+		
 		try {
 			SyncItemKey key;
-			int i;
-			//
-			// We check if c_creationdate is different from c_lastmodified since this value
-			// is equal when new entries are created. We don't want to return the keys of
-			// new elements in this method call.
-			//
-			for (i = 0; i < collections.size(); i++) {
-				switch (_source_type) {
-				case SOGO_CAL:
-					s = _connection.prepareStatement("SELECT " + collections.get(i) + ".c_name FROM " + collections.get(i) + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i) + ".c_lastmodified > ? AND " + collections.get(i) + ".c_lastmodified <= ? AND " + collections.get(i) + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND ( " + collections.get(i) + "_quick" + ".c_component = 'vevent' OR " + collections.get(i) + "_quick" + ".c_component = 'vtodo' ) AND " + collections.get(i) + ".c_lastmodified != " + collections.get(i) + ".c_creationdate ORDER BY " + collections.get(i) + ".c_lastmodified");
-					break;				
-				case SOGO_EVENT:
-					s = _connection.prepareStatement("SELECT " + collections.get(i) + ".c_name FROM " + collections.get(i) + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i) + ".c_lastmodified > ? AND " + collections.get(i) + ".c_lastmodified <= ? AND " + collections.get(i) + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND " + collections.get(i) + "_quick" + ".c_component = 'vevent' AND " + collections.get(i) + ".c_lastmodified != " + collections.get(i) + ".c_creationdate ORDER BY " + collections.get(i) + ".c_lastmodified");
-					break;
-				case SOGO_TODO:
-					s = _connection.prepareStatement("SELECT " + collections.get(i) + ".c_name FROM " + collections.get(i) + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i) + ".c_lastmodified > ? AND " + collections.get(i) + ".c_lastmodified <= ? AND " + collections.get(i) + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND " + collections.get(i) + "_quick" + ".c_component = 'vtodo' AND " + collections.get(i) + ".c_lastmodified != " + collections.get(i) + ".c_creationdate ORDER BY " + collections.get(i) + ".c_lastmodified");
-					break;
-				default:
-					s = _connection.prepareStatement("SELECT " + collections.get(i) + ".c_name FROM " + collections.get(i) + ", " + collections.get(i) + "_quick" + " WHERE " + collections.get(i) + ".c_lastmodified > ? AND " + collections.get(i) + ".c_lastmodified <= ? AND " + collections.get(i) + ".c_name = " + collections.get(i) + "_quick" + ".c_name AND " + collections.get(i) + "_quick" + ".c_component = 'vcard' AND " + collections.get(i) + ".c_lastmodified != " + collections.get(i) + ".c_creationdate ORDER BY " + collections.get(i) + ".c_lastmodified");
-				}
+			String c_name, collection;
+			int i, j, count, step, index;
+			
+			// We commit our writes before the potentially long queries
+			flushWrites();
+			
+			// Nothing can have been added, updated or deleted since the last sync
+			// in a collection whose items are all older than it
+			if (operation != SOGoQueryBuilder.ALL_ITEMS && _skip_unchanged_collections) {
+				collections = getChangedCollections(collections, start);
+				counts = new int[collections.length];
+			}
+			
+			step = (_union_queries ? collections.length : 1);
+			count = SOGoQueryBuilder.getParameterCount(operation);
+			
+			for (i = 0; i < collections.length; i += step) {
+				s = prepareStatement(SOGoQueryBuilder.getQuery(operation, collections, i, i+step, _source_type));
 				
-				s.setLong(1, start);
-				s.setLong(2, end);
+				// We stream the rows instead of loading them all in memory
+				s.setFetchSize(FETCH_SIZE);
+				
+				for (j = 0; j < step * count; j += 2) {
+					s.setLong(j+1, start);
+					s.setLong(j+2, end);
+				}
 				
 				rs = s.executeQuery();
 				
 				while (rs.next()) {
-					key = new SyncItemKey(SOGoKey.decodeString(rs.getString(1)));
-					_log.info("getUpdatedSyncItemKeys(): " + key + "(" + collections.get(i) + ")");
+					c_name = rs.getString(1);
+					index = rs.getInt(2);
+					collection = collections[index];
+					key = new SyncItemKey(SOGoKey.decodeString(c_name));
 					v.add(key);
+					counts[index]++;
+					
+					if (trace)
+						_log.trace(method + "(): " + key + "(" + collection + ")");
+					
+					if (operation == SOGoQueryBuilder.DELETED_ITEMS) {
+						if (collection.equals(_key_locations.get(c_name)))
+							_key_locations.remove(c_name);
+					} else {
+						addItemLocation(c_name, collection);
+						
+						if (_prefetch_items)
+							_item_buffer.add(c_name, collection);
+					}
 				}
 				
 				rs.close();
-				s.close();	
 			}
-
-
+			
+			// We now know where every item is
+			if (operation == SOGoQueryBuilder.ALL_ITEMS)
+				_key_locations_complete = true;
+			
 		} catch (Exception e) {
-			_log.error("Exception during getDeletedSyncItemsKeys(): " + e.toString(), e);
+			_log.error("Exception during " + method + "(): " + e.toString(), e);
+			checkLocations(e);
+		}
+		
+		if (_log.isInfoEnabled()) {
+			StringBuffer summary;
+			int i;
+			
+			summary = new StringBuffer(method + "(): " + v.size() + " keys");
+			
+			for (i = 0; i < collections.length; i++) {
+				summary.append(i == 0 ? " (" : ", ");
+				summary.append(collections[i]).append(": ").append(counts[i]);
+			}
+			
+			if (collections.length > 0)
+				summary.append(")");
+			
+			_log.info(summary.toString());
 		}
 		
-		return v.toArray(new SyncItemKey[0]);	
+		return v.toArray(new SyncItemKey[v.size()]);
 	}
 
+	/**
+	 * Returns the collections in which items were modified since the
+	 * specified date. The last modification date of the items of every
+	 * collection is read once per sync session, using one query, and
+	 * read again after we've written to the collections.
+	 * 
+	 * @param collections
+	 * @param since
+	 * @return
+	 */
+	private String[] getChangedCollections(String[] collections, long since) {
+		ArrayList<String> changed;
+		PreparedStatement s;
+		ResultSet rs;
+		Long last;
+		int i, step;
+		
+		if (_last_modified == null) {
+			_last_modified = new HashMap<String, Long>();
+			step = (_union_queries ? collections.length : 1);
+			
+			try {
+				for (i = 0; i < collections.length; i += step) {
+					s = prepareStatement(SOGoQueryBuilder.getLastModifiedQuery(collections, i, i+step));
+					rs = s.executeQuery();
+					
+					while (rs.next()) {
+						// Empty collections have a null date, read as 0
+						_last_modified.put(collections[rs.getInt(1)], Long.valueOf(rs.getLong(2)));
+					}
+					
+					rs.close();
+				}
+			} catch (Exception e) {
+				_log.error("Exception occured in getChangedCollections(): " + e.toString(), e);
+				checkLocations(e);
+				_last_modified = null;
+				
+				// Some databases abort the transaction on errors - our writes
+				// were flushed, so there's nothing else we'd roll back
+				try {
+					_connection.rollback();
+				} catch (SQLException e2) {
+					_log.info("Couldn't roll back: " + e2.toString());
+				}
+				
+				return collections;
+			}
+		}
+		
+		changed = new ArrayList<String>(collections.length);
+		
+		for (i = 0; i < collections.length; i++) {
+			last = _last_modified.get(collections[i]);
+			
+			if (last == null || last.longValue() >= since)
+				changed.add(collections[i]);
+		}
+		
+		if (changed.size() < collections.length)
+			_log.info("Skipping " + (collections.length - changed.size()) + " collections unchanged since " + since);
+		
+		return changed.toArray(new String[changed.size()]);
+	}
+	
 	/*
 	 * @see SyncSource
 	 */
@@ -519,7 +665,7 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		String key, tag, table_name;
 		Vector<String> tags;
 		
-		boolean b, must_secure, must_encode;
+		boolean b;
 		int i;
 		
 		_log.info("getSyncItemFromId(" + syncItemKey + ")");
@@ -531,43 +677,47 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		// and use one of them if the item is found
 		tags = new Vector(_sync_tags_location.keySet());
 		tags.insertElementAt(" ", 0);
-		must_secure = false;
-		must_encode = false;
+		
+		// If we already know where the item is, we only look there
+		if (_key_locations.containsKey(key)) {
+			tag = _location_tags.get(_key_locations.get(key));
+			tags.clear();
+			tags.add(tag == null ? " " : tag);
+		}
 		
 		try {
+			// If the item was prefetched, we use it right away. Otherwise, we
+			// fall back to looking for it in every collection.
+			if (_prefetch_items) {
+				SOGoItemBuffer.Item buffered;
+				
+				buffered = _item_buffer.get(key, this, _log);
+				
+				if (buffered != null) {
+					if (buffered.getClassification() >= 0 && _location_tags.get(buffered.getTable()) != null)
+						setClassification(buffered.getTable(), key, buffered.getClassification());
+					
+					return buildSyncItem(syncItemKey, _location_tags.get(buffered.getTable()), buffered.getTable(), buffered.getContent());
+				}
+			}
+			
 			// We loop forward, in order to get the personal folder first.
 			for (i = 0; i < tags.size(); i++) {
 				
-				tag = (i == 0 ? null : tags.get(i));
-				b = false;
+				tag = (tags.get(i).equals(" ") ? null : tags.get(i));
 				
+				// We read the content along with its quick table entry, if any
 				switch (_source_type) {
 				case SOGO_CAL:
 					// FIXME: Symbian combined event/task sync 
 				case SOGO_EVENT:
 				case SOGO_TODO:
-					// We check if the entry exists in the quick table
-					table_name = (i == 0 ? _calendar_table : (String)_sync_tags_location.get(tag));
-					s = _connection.prepareStatement("SELECT c_name FROM " + table_name + "_quick" + " WHERE c_name = ?");
-					s.setString(1, key);
-					rs = s.executeQuery();
-					b = rs.next();
-					rs.close();
-					s.close();
-					
-					s = _connection.prepareStatement("SELECT c_content FROM " + table_name + " WHERE c_name = ?");
+					table_name = (tag == null ? _calendar_table : (String)_sync_tags_location.get(tag));
+					s = prepareStatement(SOGoStatementCache.SELECT_CALENDAR_CONTENT, table_name);
 					break;
 				default:
-					// We check if the entry exists in the quick table
-					table_name = (i == 0 ? _contact_table : (String)_sync_tags_location.get(tag));
-					s = _connection.prepareStatement("SELECT c_name FROM " + table_name + "_quick" + " WHERE c_name = ?");
-					s.setString(1, key);
-					rs = s.executeQuery();
-					b = rs.next();
-					rs.close();
-					s.close();
-					
-					s = _connection.prepareStatement("SELECT c_content FROM " + table_name + " WHERE c_name = ?");
+					table_name = (tag == null ? _contact_table : (String)_sync_tags_location.get(tag));
+					s = prepareStatement(SOGoStatementCache.SELECT_CONTACT_CONTENT, table_name);
 				}
 				
 				s.setString(1, key);
@@ -575,127 +725,143 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 			
 				if (rs.next()) {
 					SyncItem item;
-		
-					int type, classification;
-					byte content[];
 					
-					// If our entry does exist in the content table but not in the quick table, we delete
-					// it from the content table and return null so the client can send back the data
+					b = (rs.getString(2) != null);
+					
+					// If our entry does exist in the content table but not in the quick table, we
+					// return null so the client can send back the data. The entry will be deleted
+					// from the content table when the sync is committed.
 					if (!b) {
-						PreparedStatement s2;
-						
-						s2 = _connection.prepareStatement("DELETE FROM " + table_name + " WHERE c_name = ?");
-						s2.setString(1, key);
-						s2.executeUpdate();
-						
-						// We cleanup and return
-						s2.close();
 						rs.close();
-						s.close();
-						_connection.commit();
+						addOrphan(table_name, key);
 						return null;
 					}
-				
-					type = SOGoUtilities.getPreferredItemType(_context, _source_type, SOGoUtilities.RX);
-					_log.info("Preferred item type: " + type);
-				
-					// We create our new item. The item type *must* be specified - otherwise,
-					// there will be an exception generated in Funambol.
-					item = new SyncItemImpl(this, (String)syncItemKey.getKeyValue(), SyncItemState.UNKNOWN); 
-					
-					// We check if we must secure the component
-					classification = SOGoACLManager.SOGoACLPublic;
-					if (tag != null && this.getCollectionForTag(tag) != null) {
-						int roles, role;
 					
-						classification = SOGoACLManager.getRoleFromClassification(item, this, _context, _log, table_name); 
-						roles = SOGoACLManager.getACL(this, _context, _log, table_name, (String)_sync_tags.get(tag), classification);
-						role = classification | SOGoACLManager.SOGoACLDAndTViewer;
-						
-						_log.info("classification: " + classification + " role: " + role + " roles: " + roles);
-						
-						// No access, we return null. The item will then be removed from the items list to send. We make sure
-						// to not only check for SOGoACLNone as the user might have the ObjectCreator or ObjectModifier right. 
-						if (roles < SOGoACLManager.SOGoACLViewer) {
-							rs.close();
-							s.close();
-							return null;
-						}
-							
-						if (roles != SOGoACLManager.SOGoACLOwner && SOGoACLManager.hasACL(roles, role))
-							must_secure = true;
-					}
-					
-					_log.info("must secure? " + must_secure);
-					
-					if (_source_type == SOGO_EVENT || _source_type == SOGO_CAL ) {
-						if (type == X_S4J_SIFE) {
-							// No need to convert to v1 here as we use the ICalendarParser class.
-							item.setType("text/x-s4j-sife");
-							content = SOGoUtilities.vEventToSIFE(rs.getString(1).getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
-							must_encode = true;
-						} else if (type == VCALENDAR_VERSION_20) {
-							// FIXME: must secure content
-							item.setType("text/x-vcalendar");
-							content = rs.getString(1).getBytes();
-						} else {
-							item.setType("text/x-vcalendar");
-							content = SOGoUtilities.vCalendarV2toV1(rs.getString(1).getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
-						}
-					} 
-					else if (_source_type == SOGO_TODO || _source_type == SOGO_CAL ) {
-						if (type == X_S4J_SIFT) {
-							// No need to convert to v1 here as we use the ICalendarParser class.
-							item.setType("text/x-s4j-sift");
-							content = SOGoUtilities.vTodoToSIFT(rs.getString(1).getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
-							must_encode = true;
-						} else if (type == VCALENDAR_VERSION_20) {
-							// FIXME: must secure content
-							item.setType("text/x-vcalendar");
-							content = rs.getString(1).getBytes();
-						} else {
-							item.setType("text/x-vcalendar");
-							content = SOGoUtilities.vCalendarV2toV1(rs.getString(1).getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
-						}
-					} else {
-						if (type == X_S4J_SIFC) {
-							// FIXME: call v3tov21 first
-							item.setType("text/x-s4j-sifc");
-							content = SOGoUtilities.vCardToSIFC(rs.getString(1).getBytes(), this, _log);
-							must_encode = true;
-						} else if (type == VCARD_VERSION_30) {
-							item.setType("text/x-vcard");
-							content = rs.getString(1).getBytes();
-						} else {
-							item.setType("text/x-vcard");
-							content = SOGoUtilities.vCardV3toV21(rs.getString(1).getBytes(), this, _context, _log);
-						}
-					}
+					// We keep the classification for when we check the ACLs
+					if (tag != null && _source_type != SOGO_CONTACT)
+						setClassification(table_name, key, rs.getInt(3));
 					
-					// We always encode using b64 the SIF-* data.
-					if (must_encode) {
-						item.setFormat(Constants.FORMAT_B64);
-						item.setContent(Base64.encode(content));
-					} else {
-						item.setContent(content);
-					}
+					item = buildSyncItem(syncItemKey, tag, table_name, rs.getString(1));
 					
 					rs.close();
-					s.close();
 					return item;
 				} // if (rs.next()) ...
 				
 				rs.close();
-				s.close();
 			}
 		} catch (Exception e) {
 			_log.error("Exception during getSyncItemFromId(): " + e.toString(), e);
+			checkLocations(e);
 		}
 		
 		// Item not found...
 		return null;
 	}
 	
+	/**
+	 * Builds the item to send to the device from the content stored in SOGo,
+	 * converting it to the device's preferred type.
+	 * 
+	 * @param syncItemKey
+	 * @param tag the tag of the collection, or null for the personal one
+	 * @param table_name the collection holding the item
+	 * @param c_content the content of the item, as stored in SOGo
+	 * @return the item, or null if the user can't access it
+	 * @throws Exception
+	 */
+	private SyncItem buildSyncItem(SyncItemKey syncItemKey, String tag, String table_name, String c_content) throws Exception {
+		boolean must_secure, must_encode;
+		int type, classification;
+		byte content[];
+		SyncItem item;
+		
+		must_secure = false;
+		must_encode = false;
+		
+		type = _device_profile.getPreferredItemType(_source_type, SOGoUtilities.RX);
+		_log.info("Preferred item type: " + type);
+	
+		// We create our new item. The item type *must* be specified - otherwise,
+		// there will be an exception generated in Funambol.
+		item = new SyncItemImpl(this, (String)syncItemKey.getKeyValue(), SyncItemState.UNKNOWN); 
+		
+		// We check if we must secure the component
+		classification = SOGoACLManager.SOGoACLPublic;
+		if (tag != null && this.getCollectionForTag(tag) != null) {
+			int roles, role;
+		
+			classification = SOGoACLManager.getRoleFromClassification(item, this, _context, _log, table_name); 
+			roles = SOGoACLManager.getACL(this, _context, _log, table_name, (String)_sync_tags.get(tag), classification);
+			role = classification | SOGoACLManager.SOGoACLDAndTViewer;
+			
+			_log.info("classification: " + classification + " role: " + role + " roles: " + roles);
+			
+			// No access, we return null. The item will then be removed from the items list to send. We make sure
+			// to not only check for SOGoACLNone as the user might have the ObjectCreator or ObjectModifier right. 
+			if (roles < SOGoACLManager.SOGoACLViewer)
+				return null;
+				
+			if (roles != SOGoACLManager.SOGoACLOwner && SOGoACLManager.hasACL(roles, role))
+				must_secure = true;
+		}
+		
+		_log.info("must secure? " + must_secure);
+		
+		if (_source_type == SOGO_EVENT || _source_type == SOGO_CAL ) {
+			if (type == X_S4J_SIFE) {
+				// No need to convert to v1 here as we use the ICalendarParser class.
+				item.setType("text/x-s4j-sife");
+				content = SOGoUtilities.vEventToSIFE(c_content.getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
+				must_encode = true;
+			} else if (type == VCALENDAR_VERSION_20) {
+				// FIXME: must secure content
+				item.setType("text/x-vcalendar");
+				content = c_content.getBytes();
+			} else {
+				item.setType("text/x-vcalendar");
+				content = SOGoUtilities.vCalendarV2toV1(c_content.getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
+			}
+		} 
+		else if (_source_type == SOGO_TODO || _source_type == SOGO_CAL ) {
+			if (type == X_S4J_SIFT) {
+				// No need to convert to v1 here as we use the ICalendarParser class.
+				item.setType("text/x-s4j-sift");
+				content = SOGoUtilities.vTodoToSIFT(c_content.getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
+				must_encode = true;
+			} else if (type == VCALENDAR_VERSION_20) {
+				// FIXME: must secure content
+				item.setType("text/x-vcalendar");
+				content = c_content.getBytes();
+			} else {
+				item.setType("text/x-vcalendar");
+				content = SOGoUtilities.vCalendarV2toV1(c_content.getBytes(), tag, (String)syncItemKey.getKeyValue(), must_secure, classification, this, _context, _log);
+			}
+		} else {
+			if (type == X_S4J_SIFC) {
+				// FIXME: call v3tov21 first
+				item.setType("text/x-s4j-sifc");
+				content = SOGoUtilities.vCardToSIFC(c_content.getBytes(), this, _log);
+				must_encode = true;
+			} else if (type == VCARD_VERSION_30) {
+				item.setType("text/x-vcard");
+				content = c_content.getBytes();
+			} else {
+				item.setType("text/x-vcard");
+				content = SOGoUtilities.vCardV3toV21(c_content.getBytes(), this, _context, _log);
+			}
+		}
+		
+		// We always encode using b64 the SIF-* data.
+		if (must_encode) {
+			item.setFormat(Constants.FORMAT_B64);
+			item.setContent(Base64.encode(content));
+		} else {
+			item.setContent(content);
+		}
+		
+		return item;
+	}
+	
 	/**
 	 * 
 	 * @param syncItemKey
@@ -706,38 +872,21 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	@SuppressWarnings(value={"unchecked"})
 	public void removeSyncItem(SyncItemKey syncItemKey, Timestamp time, boolean softdelete) throws SyncSourceException {
 
+		SOGoWriteBatch.Unit unit;
 		String tag, table_name;
-		Vector<String> tags;
-		PreparedStatement s;
 		String key;
-		int i;
 		
 		_log.info("removeSyncItem(" + syncItemKey + " , " + time + " , soft? " + softdelete + ")");
 
 		if (softdelete) return;
 		
-		// We find in which calendar the event is
-		tags = new Vector(_sync_tags_location.keySet());
-		tags.insertElementAt(" ", 0);
-		table_name = null;
-		tag = null;
-		
-		_log.info("Tags: " + tags.toString() + " count: " + tags.size());
-		
-		for (i = 0; i < tags.size(); i++) {
-			tag = tags.get(i);			
-			table_name = getTableName(i, _source_type, tag);
-			
-			if (this.getSyncItemKeyInCollection(syncItemKey, table_name) != null)
-				break;
-		}
+		_item_buffer.remove(SOGoKey.encodeString((String)syncItemKey.getKeyValue()));
 		
-		_log.info("Target tag: " + tag + " location: " + table_name + " i:" + i);
+		// We find in which calendar the event is
+		tag = findTagForItem(syncItemKey);
+		table_name = getTableName(tag);
 		
-		if (table_name == null || i == 0 || i == tags.size()) {
-			table_name = getTableName(0, _source_type, tag);
-			tag = null;
-		}
+		_log.info("Target tag: " + tag + " location: " + table_name);
 		
 		try {			
 			key = SOGoKey.encodeString((String)syncItemKey.getKeyValue());
@@ -752,40 +901,21 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 					throw new SyncSourceException("No access rights on " + table_name + " - ObjectEraser is needed");
 			}
 			
-			switch (_source_type) {
-			case SOGO_CAL:
-			case SOGO_EVENT:
-			case SOGO_TODO:
-				// First, we update the entry from our real table
-				s = _connection.prepareStatement("UPDATE " + table_name + " SET c_deleted = 1, c_lastmodified = ? WHERE c_name = ?");
-				s.setLong(1, (long)(new java.util.Date()).getTime()/1000);
-				s.setString(2, key);
-				s.executeUpdate();
-				s.close();
-				
-				// Then, we delete the entry from our quick table
-				s = _connection.prepareStatement("DELETE FROM " + table_name + "_quick" + " WHERE c_name = ?");
-				s.setString(1, key);
-				s.executeUpdate();
-				s.close();
-				break;
-				
-			default:
-				// First, we update the entry from our real table
-				s = _connection.prepareStatement("UPDATE " + table_name + " SET c_deleted = 1, c_lastmodified = ? WHERE c_name = ?");
-				s.setLong(1, (long)(new java.util.Date()).getTime()/1000);
-				s.setString(2, key);
-				s.executeUpdate();
-				s.close();
-				
-				// Then, we delete the entry from our quick table
-				s = _connection.prepareStatement("DELETE FROM " + table_name + "_quick" + " WHERE c_name = ?");
-				s.setString(1, key);
-				s.executeUpdate();
-				s.close();
-			}
+			// We mark the entry as deleted in our real table and
+			// delete it from our quick table
+			unit = new SOGoWriteBatch.Unit(key);
+			unit.add(SOGoStatementCache.MARK_DELETED, table_name, Long.valueOf((new java.util.Date()).getTime()/1000), key);
+			unit.add(SOGoStatementCache.DELETE_QUICK, table_name + "_quick", key);
+			queueWrite(unit);
 			
-			_connection.commit();
+			_key_locations.remove(key);
+			
+			if (_contact_twins != null)
+				_contact_twins.remove(key);
+			
+			for (SOGoTwinIndex index : _calendar_twins.values()) {
+				index.remove(key);
+			}
 			
 		} catch (Exception e) {
 			if (e instanceof SyncSourceException)
@@ -806,7 +936,7 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 
 			key = SOGoKey.encodeString((String)syncItemKey.getKeyValue());
 
-			s = _connection.prepareStatement("SELECT c_name FROM " + collection + "_quick" + " WHERE c_name = ?");
+			s = prepareStatement(SOGoStatementCache.SELECT_QUICK, collection + "_quick");
 			s.setString(1, key);
 			rs = s.executeQuery();
 			
@@ -817,25 +947,95 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 			}
 			
 			rs.close();
-			s.close();
 			
 		} catch (Exception e) {
 			_log.info("We got an exception while creating a statement: that probably means we're no longer connected.");
 		}
 			
-		return key;
+		return key;
+	}
+
+	/**
+	 * Returns the tag of the collection holding the item. If the item is in
+	 * the personal collection, or can't be found at all, null is returned.
+	 * 
+	 * The collections are only queried if the item wasn't seen before during
+	 * the sync session.
+	 * 
+	 * @param syncItemKey
+	 * @return
+	 */
+	@SuppressWarnings(value={"unchecked"})
+	private String findTagForItem(SyncItemKey syncItemKey) {
+		String key, location, tag;
+		Iterator<String> tags;
+		
+		key = SOGoKey.encodeString((String)syncItemKey.getKeyValue());
+		location = _key_locations.get(key);
+		
+		if (location != null)
+			return _location_tags.get(location);
+
+		// All items were enumerated, so an unknown item can't be in a tagged collection
+		if (_key_locations_complete)
+			return null;
+		
+		location = getTableName(null);
+		
+		if (this.getSyncItemKeyInCollection(syncItemKey, location) != null) {
+			_key_locations.put(key, location);
+			return null;
+		}
+		
+		tags = _sync_tags_location.keySet().iterator();
+		
+		while (tags.hasNext()) {
+			tag = tags.next();
+			location = getTableName(tag);
+			
+			if (this.getSyncItemKeyInCollection(syncItemKey, location) != null) {
+				_key_locations.put(key, location);
+				return tag;
+			}
+		}
+		
+		return null;
 	}
 
-	private String getTableName(int index, int type, String tag) {
+	private String getTableName(String tag) {
 		String s;
 		
-		if (type == SOGO_CONTACT)
-			s = (index == 0 ? _contact_table : (String)_sync_tags_location.get(tag));
+		if (tag != null)
+			s = (String)_sync_tags_location.get(tag);
+		else if (_source_type == SOGO_CONTACT)
+			s = _contact_table;
 		else
-			s = (index == 0 ? _calendar_table : (String)_sync_tags_location.get(tag));
+			s = _calendar_table;
 		
 		return s;
 	}
+	
+	/**
+	 * Keeps track of the table holding the item, unless
+	 * we already know about one.
+	 * 
+	 * @param key the encoded key (c_name)
+	 * @param location
+	 */
+	private void addItemLocation(String key, String location) {
+		if (!_key_locations.containsKey(key))
+			_key_locations.put(key, location);
+	}
+	
+	/**
+	 * Must be called whenever an item is created in a collection.
+	 * 
+	 * @param key the encoded key (c_name)
+	 * @param location
+	 */
+	public void setItemLocation(String key, String location) {
+		_key_locations.put(key, location);
+	}
 	/*
 	 * @see SyncSource
 	 */
@@ -844,45 +1044,27 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 			throws SyncSourceException {
 
 		String tag, table_name;
-		Vector<String> tags;
-		int type, i;
+		int type;
 		
 		_log.info("updateSyncItem(" + syncItem.getKey().getKeyAsString() + ")");
 		_log.info("updateSyncItem - type: " + syncItem.getType());
 		
+		_item_buffer.remove(SOGoKey.encodeString((String)syncItem.getKey().getKeyValue()));
+		
 		if (_context.getSyncMode() == AlertCode.SLOW) {
 			_log.info("Skipping updates from the client after a slow-sync.");
 			return syncItem;
 		}
 		
-		type = SOGoUtilities.getPreferredItemType(_context, _source_type, SOGoUtilities.RX);
+		type = _device_profile.getPreferredItemType(_source_type, SOGoUtilities.RX);
 		_log.info("Preferred item type: " + type);
 
 		// We find in which calendar the event is
-		tags = new Vector(_sync_tags_location.keySet());
-		tags.insertElementAt(" ", 0);
-		table_name = null;
-		tag = null;
-		
-		_log.info("Tags: " + tags.toString() + " count: " + tags.size());
-		
-		for (i = 0; i < tags.size(); i++) {
-			tag = tags.get(i);			
-			table_name = getTableName(i, _source_type, tag);
-			
-			if (this.getSyncItemKeyInCollection(syncItem.getKey(), table_name) != null)
-				break;
-		}
-		
-		_log.info("Target tag: " + tag + " location: " + table_name + " i:" + i);
-		
-		if (table_name == null || i == 0 || i == tags.size()) {
-			table_name = getTableName(0, _source_type, tag);
-			tag = null;
-		}
+		tag = findTagForItem(syncItem.getKey());
+		table_name = getTableName(tag);
 		
 		_log.info("Target tag: " + tag + " location: " + table_name);
-
+		
 		if (_context.getConflictResolution() == SyncContext.CONFLICT_RESOLUTION_CLIENT_WINS) {
 			switch (_source_type) {
 			case SOGO_CAL:
@@ -960,13 +1142,14 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 
 		_log.info("addSyncItem(" + syncItem.getKey().getKeyAsString() + ")");
 		_log.info("addSyncItem - type: " + syncItem.getType());
+		_item_buffer.remove(SOGoKey.encodeString((String)syncItem.getKey().getKeyValue()));
 		itemOnServer = this.getSyncItemFromId(syncItem.getKey());	
 				
 		if (itemOnServer == null) {
 			int type, vcal_type=0;
 			String content = new String(syncItem.getContent());
 			_log.info("addSyncItem - content: " + content);
-			type = SOGoUtilities.getPreferredItemType(_context, _source_type, SOGoUtilities.RX);
+			type = _device_profile.getPreferredItemType(_source_type, SOGoUtilities.RX);
 			_log.info("Preferred item type: " + type);
 			
 			switch (_source_type) {
@@ -1037,8 +1220,6 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 			throws SyncSourceException {
 		ArrayList<SyncItemKey> l;
 		String c_type;
-		ResultSet rs;
-		Statement s;
 		int vcal_type = 0;
 		
 		l = new ArrayList<SyncItemKey>();
@@ -1058,31 +1239,26 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 			c_type = "vevent";
 		case SOGO_TODO:
 			try {
-				String c_title, content, tag, summary, location;
+				String tag, summary, location, c_name;
 				CalendarContent cc = null;
 				
-				long c_startdate, c_enddate, start, end;
+				long start, end;
 				int type, a,b ;
 				
 				
-				type = SOGoUtilities.getPreferredItemType(_context, _source_type, SOGoUtilities.RX);
+				type = _device_profile.getPreferredItemType(_source_type, SOGoUtilities.RX);
 				
 				if (c_type == null) {
 					c_type = "vtodo";
 				}
 				
 				if (type == SOGoSyncSource.VCALENDAR_VERSION_10 || type == SOGoSyncSource.VCALENDAR_VERSION_20) {
-					content = SOGoSanitizer.sanitizevCalendarInput(syncItem.getContent(), syncItem.getKey().getKeyAsString(), _log);
-				} else {
-					content = null;
-				}
-				if (c_type == "vcal") {
-					if (vcal_type == SOGO_EVENT)
-						cc = SOGoUtilities.getCalendarContentFromSyncItem(content, "vevent", syncItem, this, type, _log);
-					else if(vcal_type == SOGO_TODO) 
-						cc = SOGoUtilities.getCalendarContentFromSyncItem(content, "vtodo", syncItem, this, type, _log);
+					// We keep the parsed item around as it'll be added or updated right after
+					_calendar_data = new CalendarData(syncItem, SOGoUtilities.getUserTimeZone(this, _context, _log), getDeviceCharset());
+					_calendar_data_content = syncItem.getContent();
+					cc = _calendar_data.getCalendar().getCalendarContent();
 				} else {
-					cc = SOGoUtilities.getCalendarContentFromSyncItem(content, c_type, syncItem, this, type, _log);
+					cc = SOGoUtilities.getCalendarContentFromSyncItem(null, c_type, syncItem, this, type, _log);
 				}
 				
 				if (_source_type == SOGO_EVENT || (_source_type == SOGO_CAL && vcal_type == SOGO_EVENT) ) {
@@ -1116,23 +1292,12 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 				if (tag == null || location == null)
 					location = _calendar_table;
 				
-				s = _connection.createStatement();
-				rs = s.executeQuery("SELECT c_startdate, c_enddate, c_title, c_name FROM " + location + "_quick" + " WHERE c_component = '" + c_type + "'");
+				c_name = getCalendarTwinIndex(location, c_type).getFirst(getCalendarTwinValue(start, end, summary));
 				
-				 while (rs.next()) {
-						c_startdate = rs.getLong(1);
-						c_enddate = rs.getLong(2);
-						c_title = rs.getString(3);
-						
-						if (c_startdate == start && c_enddate == end && summary.equalsIgnoreCase(c_title)) {
-							_log.info("Found calendar entry in database: " + c_title);
-							l.add(new SyncItemKey(rs.getString(4)));
-							break;
-						}
-				 }
-				 
-				 rs.close();
-				 s.close();
+				if (c_name != null) {
+					_log.info("Found calendar entry in database: " + summary);
+					l.add(new SyncItemKey(c_name));
+				}
 				
 			} catch (Exception e) {
 				_log.error("Exception occured in getSyncItemKeysFromTwin() - " + e.getMessage(), e);
@@ -1148,14 +1313,14 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		case SOGO_CONTACT:
 		default:
 			try {
-				String cn, c_cn, c_mail, c_o, o;
+				ArrayList<String> values;
 				ArrayList<Email> emails;
+				List<String> keys;
+				String cn, o;
 				Contact c;
-				boolean found;
 				int i;
 				
-				c = SOGoUtilities.getContactFromSyncItem(syncItem, SOGoUtilities.getPreferredItemType(_context, _source_type, SOGoUtilities.RX), _log);
-				found = false;
+				c = SOGoUtilities.getContactFromSyncItem(syncItem, _device_profile.getPreferredItemType(_source_type, SOGoUtilities.RX), _log);
 				cn = "";
 				o = "";
 				
@@ -1201,45 +1366,22 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 
 				_log.info("In getSyncItemKeysFromTwin: cn = " + cn + " emails = " + emails.toString() + " o = " + o);
 				
-				s = _connection.createStatement();
-				rs = s.executeQuery("SELECT c_cn, c_mail, c_o, c_name FROM " + _contact_quick_table);
-										
-				 while (rs.next()) {
-					 
-					c_cn = (rs.getString(1) == null ? "" : rs.getString(1));
-					c_mail = (rs.getString(2) == null ? "" : rs.getString(2));
-					c_o = (rs.getString(3) == null ? "" : rs.getString(3));
-					_log.info("c_cn = " + c_cn + " c_mail = " + c_mail + " c_o = " + c_o);
-
-					// We first compare the email, then, the name and finally the organization
-					for (i = 0; i < emails.size(); i++) {
-						if (c_mail.trim().length() > 0 && c_mail.trim().equalsIgnoreCase(emails.get(i).getPropertyValueAsString().trim())) {
-							_log.info("c_mail matches for twin items (" + emails.get(i).getPropertyValueAsString().trim() + ")");
-							found = true;
-							break;
-						}
-					}
-					
-					if (!found) {
-						if (c_cn.trim().length() > 0 && c_cn.trim().equalsIgnoreCase(cn.trim())) {
-							_log.info("c_cn matches for twin items (" + cn + ")");
-							found = true;
-						}
-					}
-					
-					if (!found) {
-						if (c_o.trim().length() > 0 && c_o.trim().equalsIgnoreCase(o.trim())) {
-							_log.info("c_o matches for twin items (" + o + ")");
-							found = true;
-						}
-					}
-					
-					if (found)
-						l.add(new SyncItemKey(rs.getString(4)));
-				 }
+				// We look for contacts having one of the emails, the same name or the same organization
+				values = new ArrayList<String>();
+				
+				for (i = 0; i < emails.size(); i++) {
+					values.add(getContactTwinValue("mail", emails.get(i).getPropertyValueAsString()));
+				}
+				
+				values.add(getContactTwinValue("cn", cn));
+				values.add(getContactTwinValue("o", o));
 				
-				 rs.close();
-				 s.close();
+				keys = getContactTwinIndex().getAll(values);
+				
+				for (i = 0; i < keys.size(); i++) {
+					_log.info("Found twin contact in database: " + keys.get(i));
+					l.add(new SyncItemKey(keys.get(i)));
+				}
 				 
 			} catch (Exception e) {
 				_log.error("Exception occured in getSyncItemKeysFromTwin() - " + e.getMessage(), e);				
@@ -1251,6 +1393,154 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		return (SyncItemKey[])l.toArray(new SyncItemKey[l.size()]);
 	}
 
+	/**
+	 * Returns the index of the contacts of the personal address book, used
+	 * to find twins. The index is built from the quick table the first time
+	 * it's needed during the sync session and is then kept up-to-date
+	 * when contacts are added, updated or removed.
+	 * 
+	 * @return
+	 * @throws SQLException
+	 */
+	private SOGoTwinIndex getContactTwinIndex() throws SQLException {
+		SOGoTwinIndex index;
+		PreparedStatement s;
+		ResultSet rs;
+		
+		if (_contact_twins == null) {
+			index = new SOGoTwinIndex();
+			
+			s = prepareStatement(SOGoStatementCache.SELECT_CONTACT_TWINS, _contact_quick_table);
+			s.setFetchSize(FETCH_SIZE);
+			rs = s.executeQuery();
+			
+			while (rs.next()) {
+				index.put(rs.getString(4), getContactTwinValue("cn", rs.getString(1)), getContactTwinValue("mail", rs.getString(2)), getContactTwinValue("o", rs.getString(3)));
+			}
+			
+			rs.close();
+			
+			// We only keep the index once it's complete
+			_contact_twins = index;
+			_log.info("Loaded " + _contact_twins.size() + " contacts from " + _contact_quick_table + " for twin detection");
+		}
+		
+		return _contact_twins;
+	}
+	
+	/**
+	 * Returns the parsed calendar data of the item. If the item was parsed
+	 * while looking for its twins, that data is reused instead of parsing
+	 * the item again. The data is handed out only once, as the caller
+	 * is free to modify it.
+	 * 
+	 * @param item
+	 * @param tz
+	 * @return
+	 * @throws ParseException
+	 * @throws ConverterException
+	 */
+	public CalendarData getCalendarData(SyncItem item, TimeZone tz) throws ParseException, ConverterException {
+		CalendarData data;
+		
+		data = _calendar_data;
+		
+		if (data == null || !Arrays.equals(_calendar_data_content, item.getContent())) {
+			data = new CalendarData(item, tz, getDeviceCharset());
+		}
+		
+		_calendar_data = null;
+		_calendar_data_content = null;
+		
+		return data;
+	}
+	
+	/**
+	 * Returns the index of the events or tasks of the specified calendar, used
+	 * to find twins. Like the contact index, it's built the first time it's
+	 * needed during the sync session and then kept up-to-date.
+	 * 
+	 * @param location
+	 * @param component vevent or vtodo
+	 * @return
+	 * @throws SQLException
+	 */
+	private SOGoTwinIndex getCalendarTwinIndex(String location, String component) throws SQLException {
+		SOGoTwinIndex index;
+		PreparedStatement s;
+		ResultSet rs;
+		
+		index = _calendar_twins.get(location + " " + component);
+		
+		if (index == null) {
+			index = new SOGoTwinIndex();
+			
+			s = prepareStatement(SOGoStatementCache.SELECT_CALENDAR_TWINS, location + "_quick");
+			s.setFetchSize(FETCH_SIZE);
+			s.setString(1, component);
+			rs = s.executeQuery();
+			
+			while (rs.next()) {
+				index.put(rs.getString(4), getCalendarTwinValue(rs.getLong(1), rs.getLong(2), rs.getString(3)));
+			}
+			
+			rs.close();
+			
+			_calendar_twins.put(location + " " + component, index);
+			_log.info("Loaded " + index.size() + " " + component + " from " + location + " for twin detection");
+		}
+		
+		return index;
+	}
+	
+	private static String getCalendarTwinValue(long start, long end, String title) {
+		if (title == null)
+			return null;
+		
+		title = SOGoTwinIndex.normalize(title);
+		
+		return start + "/" + end + "/" + (title == null ? "" : title);
+	}
+	
+	/**
+	 * Must be called whenever an event or a task is added or updated.
+	 * 
+	 * @param location
+	 * @param component vevent or vtodo
+	 * @param c_name
+	 * @param c_startdate
+	 * @param c_enddate
+	 * @param c_title
+	 */
+	public void updateCalendarTwin(String location, String component, String c_name, long c_startdate, long c_enddate, String c_title) {
+		SOGoTwinIndex index;
+		
+		index = _calendar_twins.get(location + " " + component);
+		
+		if (index != null)
+			index.put(c_name, getCalendarTwinValue(c_startdate, c_enddate, c_title));
+	}
+	
+	private static String getContactTwinValue(String field, String value) {
+		value = SOGoTwinIndex.normalize(value);
+		
+		return (value == null ? null : field + ":" + value);
+	}
+	
+	/**
+	 * Must be called whenever a contact is added or updated in
+	 * the personal address book.
+	 * 
+	 * @param c_name
+	 * @param c_cn
+	 * @param c_mail
+	 * @param c_o
+	 */
+	public void updateContactTwin(String c_name, String c_cn, String c_mail, String c_o) {
+		if (_contact_twins != null)
+			_contact_twins.put(c_name, getContactTwinValue("cn", c_cn), getContactTwinValue("mail", c_mail), getContactTwinValue("o", c_o));
+	}
+
 	/**
 	 */
 	public void setOperationStatus(String operation, int statusCode,
@@ -1315,6 +1605,54 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		_password = password;
 	}
 	
+	/**
+	 * 
+	 * @return
+	 */
+	public int getMaxConnections() {
+		return _max_connections;
+	}
+	
+	/**
+	 * 
+	 * @param max
+	 */
+	public void setMaxConnections(int max) {
+		_max_connections = max;
+	}
+	
+	/**
+	 * 
+	 * @return the delay, in milliseconds, to wait for a pooled connection
+	 */
+	public long getConnectionMaxWait() {
+		return _connection_max_wait;
+	}
+	
+	/**
+	 * 
+	 * @param wait
+	 */
+	public void setConnectionMaxWait(long wait) {
+		_connection_max_wait = wait;
+	}
+	
+	/**
+	 * 
+	 * @return the delay, in milliseconds, after which idle pooled connections are closed
+	 */
+	public long getConnectionMaxIdleTime() {
+		return _connection_max_idle_time;
+	}
+	
+	/**
+	 * 
+	 * @param time
+	 */
+	public void setConnectionMaxIdleTime(long time) {
+		_connection_max_idle_time = time;
+	}
+	
 	/**
 	 * 
 	 * @return
@@ -1323,6 +1661,32 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		return _connection;
 	}
 	
+	/**
+	 * Returns a prepared statement for the template and the table. The
+	 * statement is reused for the whole sync session and must NOT be
+	 * closed by the caller.
+	 * 
+	 * @param template One of the SOGoStatementCache templates
+	 * @param table
+	 * @return
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String template, String table) throws SQLException {
+		return _statements.prepare(_connection, template, table);
+	}
+	
+	/**
+	 * Returns a prepared statement for the SQL. The statement is reused
+	 * for the whole sync session and must NOT be closed by the caller.
+	 * 
+	 * @param sql
+	 * @return
+	 * @throws SQLException
+	 */
+	public PreparedStatement prepareStatement(String sql) throws SQLException {
+		return _statements.prepare(_connection, sql);
+	}
+	
 	/**
 	 * 
 	 * @return
@@ -1351,6 +1715,10 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 	 * 
 	 * @return
 	 */
+	public SOGoDeviceProfile getDeviceProfile() {
+		return _device_profile;
+	}
+
 	public String getDeviceCharset() {
 		return _charset;
 	}
@@ -1370,6 +1738,179 @@ public class SOGoSyncSource extends AbstractSyncSource implements SyncSource, Se
 		return collections;
 	}
 	
+	/**
+	 * Returns the profile of the specified user. The profile is
+	 * kept for the whole sync session once it has been obtained.
+	 * 
+	 * @param uid
+	 * @return
+	 */
+	public SOGoUserProfile getUserProfile(String uid) {
+		SOGoUserProfile profile;
+		
+		profile = _profiles.get(uid);
+		
+		if (profile == null) {
+			profile = SOGoUserProfile.getProfile(this, uid, _log);
+			_profiles.put(uid, profile);
+		}
+		
+		return profile;
+	}
+	
+	/**
+	 * 
+	 * @param table
+	 * @param key the encoded key (c_name)
+	 * @param classification
+	 */
+	public void setClassification(String table, String key, int classification) {
+		_classifications.put(table + " " + key, Integer.valueOf(classification));
+	}
+	
+	/**
+	 * Returns the classification read along with the content of the item,
+	 * and forgets it - the item might be modified afterwards.
+	 * 
+	 * @param table
+	 * @param key the encoded key (c_name)
+	 * @return the classification, or null if it wasn't read
+	 */
+	public Integer takeClassification(String table, String key) {
+		return _classifications.remove(table + " " + key);
+	}
+	
+	/**
+	 * 
+	 * @param key
+	 * @return the roles cached for the key during the sync session, or null
+	 */
+	public List<String> getACLRoles(String key) {
+		return _acl_roles.get(key);
+	}
+	
+	public void setACLRoles(String key, List<String> roles) {
+		_acl_roles.put(key, roles);
+	}
+	
+	/**
+	 * Drops the cached folder locations of the current user if the exception
+	 * was raised because one of the tables we use doesn't exist anymore - the
+	 * folder was probably deleted or recreated in SOGo.
+	 * 
+	 * @param e
+	 */
+	public void checkLocations(Exception e) {
+		if (e instanceof SQLException && SOGoFolderLocations.isMissingTable((SQLException)e)) {
+			_log.info("Table not found, dropping the cached folder locations");
+			SOGoFolderLocations.invalidate(getUserID(_context));
+			SOGoFolderLocations.invalidate(_context.getPrincipal().getUsername());
+		}
+	}
+	
+	private static String getUserID(SyncContext context) {
+		try  {
+			return ((SOGoUser)context.getPrincipal().getUser()).getUserID();
+		} catch (Exception e) {
+			return context.getPrincipal().getUsername();
+		}
+	}
+	
+	/**
+	 * Executes the writes to an item. They are committed when enough
+	 * items have been written, or when the sync is committed or ends.
+	 * 
+	 * @param unit
+	 * @throws SQLException if the item couldn't be written
+	 */
+	public void queueWrite(SOGoWriteBatch.Unit unit) throws SQLException {
+		_last_modified = null;
+		_writes.add(unit, this, _log);
+	}
+	
+	/**
+	 * Records that the writes to an item were skipped
+	 * because its content hasn't changed.
+	 * 
+	 * @param key the encoded key (c_name)
+	 */
+	public void skipWrite(String key) {
+		_log.info("Item " + key + " is unchanged, skipping its update");
+		_writes.skip();
+	}
+	
+	/**
+	 * Commits the writes made since the last commit.
+	 */
+	public void flushWrites() {
+		if (_writes != null)
+			_writes.flush(this, _log);
+	}
+	
+	/**
+	 * 
+	 * @return the number of items written per batch
+	 */
+	public int getWriteBatchSize() {
+		return _write_batch_size;
+	}
+	
+	/**
+	 * 
+	 * @param size
+	 */
+	public void setWriteBatchSize(int size) {
+		_write_batch_size = size;
+	}
+	
+	/**
+	 * 
+	 * @return true if the content of enumerated items is prefetched
+	 */
+	public boolean getPrefetchItems() {
+		return _prefetch_items;
+	}
+	
+	/**
+	 * 
+	 * @param prefetch
+	 */
+	public void setPrefetchItems(boolean prefetch) {
+		_prefetch_items = prefetch;
+	}
+	
+	/**
+	 * 
+	 * @return true if the items of all collections are enumerated using one query
+	 */
+	public boolean getUnionQueries() {
+		return _union_queries;
+	}
+	
+	/**
+	 * 
+	 * @param union
+	 */
+	public void setUnionQueries(boolean union) {
+		_union_queries = union;
+	}
+	
+	/**
+	 * 
+	 * @return true if collections unchanged since the last sync aren't queried
+	 */
+	public boolean getSkipUnchangedCollections() {
+		return _skip_unchanged_collections;
+	}
+	
+	/**
+	 * 
+	 * @param skip
+	 */
+	public void setSkipUnchangedCollections(boolean skip) {
+		_skip_unchanged_collections = skip;
+	}
+	
 	public String getCollectionForTag(String tag) {
 		return (String)_sync_tags.get(tag);
 	}
@@ -51,7 +51,7 @@ public class SOGoTaskUtilities {
 	public static SyncItem addvTodoSyncItem(SyncItem item, SOGoSyncSource source, SyncContext context, FunambolLogger log) throws SyncSourceException {
 		try {
 			String c_content, c_name, c_title, c_location, location, tag;
-			PreparedStatement s;
+			SOGoWriteBatch.Unit unit;
 			TimeZone userTZ;
 			Task task;
             CalendarData data;
@@ -60,7 +60,7 @@ public class SOGoTaskUtilities {
 			int a, b, c_classification, c_status, c_priority;
 
             userTZ = SOGoUtilities.getUserTimeZone(source, context, log);
-            data = new CalendarData(item, userTZ, source.getDeviceCharset());
+            data = source.getCalendarData(item, userTZ);
 			c_content = data.getContent();
 			task = data.getCalendar().getTask();
 			c_name = SOGoKey.encodeString(item.getKey().getKeyAsString());
@@ -130,7 +130,8 @@ public class SOGoTaskUtilities {
 				if (roles != SOGoACLManager.SOGoACLOwner && !SOGoACLManager.hasACL(roles, SOGoACLManager.SOGoACLObjectCreator))
 					throw new SyncSourceException("No access rights on " + location + " - ObjectCreator is needed");
 				
-				c_content = SOGoUtilities.removeTagFromContent(c_content, tag, source, context, log);
+				data.removeTag(tag);
+				c_content = data.getContent();
 			}
 
             // Get creation and modification time for task
@@ -149,36 +150,35 @@ public class SOGoTaskUtilities {
 
 
 			// We insert into our normal table
-			s = source.getDBConnection().prepareStatement("INSERT INTO " + location + " (c_name, c_content, c_creationdate, c_lastmodified, c_version) VALUES (?, ?, ?, ?, ?)");
-			s.setString(1, c_name);
-			s.setString(2, c_content);
-			s.setLong(3, created);
-			s.setLong(4, modified);
-			s.setInt(5, 0);
-			s.executeUpdate();
-			s.close();
+			unit = new SOGoWriteBatch.Unit(c_name);
+			unit.add(SOGoStatementCache.INSERT_CONTENT, location,
+					c_name,
+					c_content,
+					Long.valueOf(created),
+					Long.valueOf(modified),
+					Integer.valueOf(0));
 
 			// We now update the quick table
-			s = source.getDBConnection().prepareStatement("INSERT INTO " + location + "_quick" + " (c_name, c_uid, c_startdate, c_enddate, c_title, c_isallday, c_iscycle, c_classification, c_status, c_priority, c_location, c_partmails, c_partstates, c_component, c_isopaque) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-			s.setString(1, c_name);		   // c_cname
-			s.setString(2, c_name); 	   // c_uid
-			s.setLong(3, s_date);		   // c_startdate
-			s.setLong(4, due_date);		   // c_endate
-			s.setString(5, c_title);	   // c_title
-			s.setInt(6, 0); 			   // c_isallday
-			s.setInt(7, 0);				   // is_cycle (must be at least 0 so the event appears in SOGo)
-			s.setInt(8, c_classification); // c_classification  
-			s.setInt(9, c_status);		   // c_status
-			s.setInt(10, c_priority);      // c_priority
-			s.setString(11, c_location);   // c_location
-			s.setString(12, "");		   // c_partmails
-			s.setString(13, "");		   // c_partstates
-			s.setString(14, "vtodo");      // c_component
-			s.setInt(15, 0);	    	   // c_isopaque
-			s.executeUpdate();
-			s.close();
-
-			source.getDBConnection().commit();
+			unit.add(SOGoStatementCache.INSERT_TASK_QUICK, location + "_quick",
+					c_name,							// c_cname
+					c_name,							// c_uid
+					Long.valueOf(s_date),			// c_startdate
+					Long.valueOf(due_date),			// c_endate
+					c_title,						// c_title
+					Integer.valueOf(0),				// c_isallday
+					Integer.valueOf(0),				// is_cycle (must be at least 0 so the event appears in SOGo)
+					Integer.valueOf(c_classification),	// c_classification
+					Integer.valueOf(c_status),		// c_status
+					Integer.valueOf(c_priority),	// c_priority
+					c_location,						// c_location
+					"",								// c_partmails
+					"",								// c_partstates
+					"vtodo",						// c_component
+					Integer.valueOf(0));			// c_isopaque
+
+			source.queueWrite(unit);
+			source.setItemLocation(c_name, location);
+			source.updateCalendarTwin(location, "vtodo", c_name, s_date, due_date, c_title);
 			
 			item.setState(SyncItemState.SYNCHRONIZED);
 		} catch (Exception e) {
@@ -282,9 +282,10 @@ public class SOGoTaskUtilities {
 	 */
 	public static SyncItem updatevTodoSyncItem(SyncItem item, String tag, String collection, SOGoSyncSource source, SyncContext context, FunambolLogger log) {
 		try {
-			String c_content, c_name, c_title, c_location;
+			String c_content, c_name, c_title, c_location, stored;
 			SimpleDateFormat formatter;
 			PreparedStatement s;
+			SOGoWriteBatch.Unit unit;
 			TimeZone userTZ;
 			Task task;
             CalendarData data;
@@ -295,7 +296,7 @@ public class SOGoTaskUtilities {
 			boolean doMerge = true;
 			
             userTZ = SOGoUtilities.getUserTimeZone(source, context, log);
-            data = new CalendarData(item, userTZ, source.getDeviceCharset());
+            data = source.getCalendarData(item, userTZ);
 			c_content = data.getContent();
             task = data.getCalendar().getTask();
 			c_title = task.getSummary().getPropertyValueAsString();
@@ -316,7 +317,8 @@ public class SOGoTaskUtilities {
 					(roles != SOGoACLManager.SOGoACLOwner && !SOGoACLManager.hasACL(roles, role)))
 					throw new SyncSourceException("No access rights on " + collection + " - Modifier is needed");
 				
-				c_content = SOGoUtilities.removeTagFromContent(c_content, tag, source, context, log);
+				data.removeTag(tag);
+				c_content = data.getContent();
                 c_title = c_title.substring(tag.length() + 3);
                 task.getSummary().setPropertyValue(c_title);
 			}
@@ -373,12 +375,14 @@ public class SOGoTaskUtilities {
                 modified = item.getTimestamp().getTime() / 1000;
             }
 
+			stored = null;
+
 			if (doMerge) {
 				Task originalTask;
 				ResultSet rs;
 				String merged_content;
 
-				s = source.getDBConnection().prepareStatement("SELECT c_content FROM " + collection + " WHERE c_name = ?");
+				s = source.prepareStatement(SOGoStatementCache.SELECT_CONTENT, collection);
 				s.setString(1, c_name);
 				rs = s.executeQuery();
 				
@@ -393,7 +397,8 @@ public class SOGoTaskUtilities {
 					VTodo v;
                     VComponentWriter writer;
 					
-					p = new ICalendarParser(new ByteArrayInputStream(rs.getString(1).getBytes()));
+					stored = rs.getString(1);
+					p = new ICalendarParser(new ByteArrayInputStream(stored.getBytes()));
 					calendar = p.ICalendar();
 					
 
@@ -415,37 +420,42 @@ public class SOGoTaskUtilities {
 					merged_content = writer.toString(calendar);
 				}
 
+				rs.close();
+
 				if (originalTask != null) {
 					c_content = merged_content;
 				}
 
 			} // if (doMerge) ...
 
-			// We insert into our normal table
-			s = source.getDBConnection().prepareStatement("UPDATE " + collection + " SET c_content = ?, c_lastmodified = ? WHERE c_name = ?");
-			s.setString(1, c_content);
-			s.setLong(2, modified);
-			s.setString(3, c_name);
-			s.executeUpdate();
-			s.close();
+			// We don't write anything if the task hasn't changed, so that
+			// its version - and the ETag SOGo gives to its clients - stay the same
+			if (SOGoFingerprint.isUnchanged(stored, c_content)) {
+				source.skipWrite(c_name);
+			} else {
+				// We insert into our normal table
+				unit = new SOGoWriteBatch.Unit(c_name);
+				unit.add(SOGoStatementCache.UPDATE_CONTENT, collection,
+						c_content,
+						Long.valueOf(modified),
+						c_name);
+
+				// We now update the quick table
+				// FIXME consider other values
+				unit.add(SOGoStatementCache.UPDATE_TASK_QUICK, collection + "_quick",
+						Long.valueOf(s_date),				// c_startdate
+						Long.valueOf(due_date),				// c_endate
+						c_title,							// c_title
+						c_location,							// c_location
+						Integer.valueOf(c_classification),	// c_classification
+						Integer.valueOf(c_status),			// c_status
+						Integer.valueOf(c_priority),		// c_priority
+						c_name);
+
+				source.queueWrite(unit);
+			}
 
-			// We now update the quick table
-			// FIXME consider other values
-			s = source.getDBConnection().prepareStatement("UPDATE " + collection + "_quick" + " SET c_startdate = ?, c_enddate = ?, c_title = ?, c_location = ?, c_classification = ?, c_status = ?, c_priority = ? WHERE c_name = ?");
-			s.setLong(1, s_date);		   // c_startdate
-			s.setLong(2, due_date);		   // c_endate
-			s.setString(3, c_title);	   // c_title
-			s.setString(4, c_location);    // c_location
-			s.setInt(5, c_classification); // c_classification
-            s.setInt(6, c_status);         // c_status
-            s.setInt(7, c_priority);       // c_priority
-			s.setString(8, c_name);
-			s.executeUpdate();
-			s.close();
-
-			SOGoUtilities.updateContentVersion(source.getDBConnection(), collection, c_name);
-
-			source.getDBConnection().commit();
+			source.updateCalendarTwin(collection, "vtodo", c_name, s_date, due_date, c_title);
 			
 			item.setState(SyncItemState.UPDATED);
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * This class is an in-memory index used to find twin items during a sync
+ * session without scanning the quick tables for every item the device sends.
+ *
+ * Values are normalized (trimmed and case-folded) before being indexed, so
+ * that lookups match what trim().equalsIgnoreCase() would. Each indexed key
+ * gets an ordinal, so that the keys matching several values can be returned
+ * in the order in which they were indexed.
+ */
+public class SOGoTwinIndex {
+
+	// Private ivars
+	private HashMap<String, ArrayList<Entry>> _entries;
+	private HashMap<String, ArrayList<String>> _values;
+	private int _ordinal;
+
+	/**
+	 * An indexed key and its ordinal.
+	 */
+	private static class Entry {
+		String key;
+		int ordinal;
+
+		Entry(String key, int ordinal) {
+			this.key = key;
+			this.ordinal = ordinal;
+		}
+	}
+
+	public SOGoTwinIndex() {
+		_entries = new HashMap<String, ArrayList<Entry>>();
+		_values = new HashMap<String, ArrayList<String>>();
+		_ordinal = 0;
+	}
+
+	/**
+	 * Returns the value, trimmed and case-folded the
+	 * same way String.equalsIgnoreCase() compares characters.
+	 *
+	 * @param value
+	 * @return the normalized value, or null if the value is null or blank
+	 */
+	public static String normalize(String value) {
+		StringBuffer buf;
+		int i;
+
+		if (value == null)
+			return null;
+
+		value = value.trim();
+
+		if (value.length() == 0)
+			return null;
+
+		buf = new StringBuffer(value.length());
+
+		for (i = 0; i < value.length(); i++) {
+			buf.append(Character.toLowerCase(Character.toUpperCase(value.charAt(i))));
+		}
+
+		return buf.toString();
+	}
+
+	/**
+	 * Indexes the key under each of the values. Blank values are ignored. All
+	 * the values of a key must be given at once - if the key was already
+	 * indexed, its previous values are dropped.
+	 *
+	 * @param key
+	 * @param values the values, already normalized
+	 */
+	public void put(String key, String... values) {
+		ArrayList<String> indexed;
+		ArrayList<Entry> entries;
+		Entry entry;
+		int i;
+
+		remove(key);
+
+		entry = new Entry(key, _ordinal++);
+		indexed = new ArrayList<String>(values.length);
+
+		for (i = 0; i < values.length; i++) {
+			if (values[i] == null || indexed.contains(values[i]))
+				continue;
+
+			entries = _entries.get(values[i]);
+
+			if (entries == null) {
+				entries = new ArrayList<Entry>(1);
+				_entries.put(values[i], entries);
+			}
+
+			entries.add(entry);
+			indexed.add(values[i]);
+		}
+
+		_values.put(key, indexed);
+	}
+
+	/**
+	 * Drops the key from the index.
+	 *
+	 * @param key
+	 */
+	public void remove(String key) {
+		ArrayList<String> indexed;
+		ArrayList<Entry> entries;
+		Iterator<Entry> it;
+		int i;
+
+		indexed = _values.remove(key);
+
+		if (indexed == null)
+			return;
+
+		for (i = 0; i < indexed.size(); i++) {
+			entries = _entries.get(indexed.get(i));
+			it = entries.iterator();
+
+			while (it.hasNext()) {
+				if (it.next().key.equals(key))
+					it.remove();
+			}
+
+			if (entries.size() == 0)
+				_entries.remove(indexed.get(i));
+		}
+	}
+
+	/**
+	 * Returns the first key indexed under the value.
+	 *
+	 * @param value the value, already normalized
+	 * @return the key, or null if none
+	 */
+	public String getFirst(String value) {
+		ArrayList<Entry> entries;
+
+		if (value == null)
+			return null;
+
+		entries = _entries.get(value);
+
+		if (entries == null || entries.size() == 0)
+			return null;
+
+		return entries.get(0).key;
+	}
+
+	/**
+	 * Returns the keys indexed under any of the values, each key being
+	 * returned once, in the order in which they were indexed.
+	 *
+	 * @param values the values, already normalized
+	 * @return
+	 */
+	public List<String> getAll(List<String> values) {
+		TreeMap<Integer, String> keys;
+		ArrayList<Entry> entries;
+		int i, j;
+
+		keys = new TreeMap<Integer, String>();
+
+		for (i = 0; i < values.size(); i++) {
+			if (values.get(i) == null)
+				continue;
+
+			entries = _entries.get(values.get(i));
+
+			if (entries == null)
+				continue;
+
+			for (j = 0; j < entries.size(); j++) {
+				keys.put(entries.get(j).ordinal, entries.get(j).key);
+			}
+		}
+
+		return new ArrayList<String>(keys.values());
+	}
+
+	public int size() {
+		return _values.size();
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.TimeZone;
+import java.util.Vector;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import com.funambol.framework.logging.FunambolLogger;
+
+/**
+ * This class holds the parsed content of a sogo_user_profile row - the
+ * user's time zone (from c_defaults) and the calendar sync tags (from
+ * c_settings). Profiles are immutable and are cached process-wide for
+ * a few minutes, so that the JSON blobs are parsed once per user instead
+ * of once per converted item.
+ */
+public class SOGoUserProfile {
+
+	// Cache settings
+	private static final int CACHE_SIZE = 1000;
+	private static final long CACHE_TTL = 300000;
+
+	// All cached profiles, keyed by c_uid
+	private static SOGoCache<String, SOGoUserProfile> _profiles = new SOGoCache<String, SOGoUserProfile>(CACHE_SIZE, CACHE_TTL);
+
+	// Private ivars
+	private String _uid;
+	private TimeZone _timezone;
+	private HashMap<String, String> _sync_tags;
+	private Vector<String> _folders;
+
+	private SOGoUserProfile(String uid) {
+		_uid = uid;
+		_timezone = null;
+		_sync_tags = new HashMap<String, String>();
+		_folders = new Vector<String>();
+	}
+
+	/**
+	 * Returns the profile of the specified user, loading it from
+	 * the SOGo database if it isn't cached yet.
+	 *
+	 * @param source
+	 * @param uid
+	 * @param log
+	 * @return the profile - never null
+	 */
+	public static SOGoUserProfile getProfile(SOGoSyncSource source, String uid, FunambolLogger log) {
+		SOGoUserProfile profile;
+
+		profile = _profiles.get(uid);
+
+		if (profile == null) {
+			profile = new SOGoUserProfile(uid);
+
+			// We don't cache profiles we failed to load so we retry on the next sync
+			if (profile.load(source, log))
+				_profiles.put(uid, profile);
+		}
+
+		return profile;
+	}
+
+	/**
+	 * Drops the cached profile of the specified user. The next call to
+	 * getProfile() will reload it from the SOGo database.
+	 *
+	 * @param uid
+	 */
+	public static void invalidate(String uid) {
+		_profiles.remove(uid);
+	}
+
+	/**
+	 *
+	 * @param source
+	 * @param log
+	 * @return true if the profile could be read
+	 */
+	private boolean load(SOGoSyncSource source, FunambolLogger log) {
+		try {
+			PreparedStatement s;
+			ResultSet rs;
+
+			s = source.getDBConnection().prepareStatement("SELECT c_defaults, c_settings FROM sogo_user_profile WHERE c_uid = ?");
+			s.setString(1, _uid);
+			rs = s.executeQuery();
+
+			if (rs.next()) {
+				parseDefaults(rs.getString(1), log);
+				parseSettings(rs.getString(2), log);
+			}
+
+			rs.close();
+			s.close();
+		} catch (Exception e) {
+			log.error("Exception occured in SOGoUserProfile.load(): " + e.toString(), e);
+			return false;
+		}
+
+		if (_timezone == null)
+			log.info("No timezone defined in SOGo for user: " + _uid);
+
+		log.info("Loaded profile for user " + _uid + " - time zone: " + (_timezone != null ? _timezone.getID() : "none") + " sync tags: " + _sync_tags);
+
+		return true;
+	}
+
+	private void parseDefaults(String data, FunambolLogger log) {
+		Object o;
+
+		if (data == null || data.length() == 0)
+			return;
+
+		try {
+			JSONObject json;
+
+			json = (JSONObject)JSONValue.parse(data);
+
+			if (json != null) {
+				o = json.get("SOGoTimeZone");
+
+				if (o == null)
+					o = json.get("TimeZone");
+
+				if (o != null)
+					_timezone = TimeZone.getTimeZone(o.toString());
+			}
+		} catch (Exception pe) {
+			log.error("Exception occured in SOGoUserProfile.parseDefaults(): " + pe.toString(), pe);
+		}
+	}
+
+	@SuppressWarnings(value={"unchecked"})
+	private void parseSettings(String data, FunambolLogger log) {
+		if (data == null || data.length() == 0)
+			return;
+
+		try {
+			JSONObject json, jsonCalendar;
+
+			log.info("About to parse: " + data);
+			json = (JSONObject)JSONValue.parse(data);
+
+			if (json != null) {
+				jsonCalendar = (JSONObject)json.get("Calendar");
+
+				if (jsonCalendar != null) {
+					String key, value;
+					Iterator<?> it;
+
+					json = (JSONObject)jsonCalendar.get("FolderSyncTags");
+					if (json != null) {
+						it = json.keySet().iterator();
+						while (it.hasNext()) {
+							key = it.next().toString();
+							value = (String)json.get(key);
+							_sync_tags.put(value.toLowerCase(), key);
+						}
+					}
+
+					json = (JSONObject)jsonCalendar.get("FolderSynchronize");
+					if (json != null) {
+						it = json.keySet().iterator();
+						while (it.hasNext()) {
+							_folders.add(it.next().toString());
+						}
+					}
+				}
+			}
+		} catch (Exception pe) {
+			log.error("Exception occured in SOGoUserProfile.parseSettings(): " + pe.toString(), pe);
+		}
+
+		// We only keep the tags of the folders that are actually synchronized
+		_sync_tags.values().retainAll(_folders);
+	}
+
+	public String getUID() {
+		return _uid;
+	}
+
+	/**
+	 *
+	 * @return the user's time zone, or null if none is defined
+	 */
+	public TimeZone getTimeZone() {
+		return _timezone;
+	}
+
+	/**
+	 *
+	 * @return a copy of the sync tags (tag -> "owner:Calendar/folder") that the caller can modify
+	 */
+	public HashMap<String, String> getSyncTags() {
+		return new HashMap<String, String>(_sync_tags);
+	}
+
+	/**
+	 *
+	 * @return a copy of the folders having the FolderSynchronize flag
+	 */
+	public Vector<String> getSynchronizedFolders() {
+		return new Vector<String>(_folders);
+	}
+}
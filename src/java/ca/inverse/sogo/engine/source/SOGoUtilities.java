@@ -34,7 +34,6 @@ import com.funambol.common.pim.sif.SIFCParser;
 import com.funambol.common.pim.sif.SIFCalendarParser;
 import com.funambol.common.pim.utility.TimeUtils;
 import com.funambol.common.pim.vcard.VcardParser;
-import com.funambol.framework.core.DataStore;
 import com.funambol.framework.engine.source.*;
 import com.funambol.framework.server.*;
 import com.funambol.common.pim.converter.*;
@@ -106,85 +105,15 @@ public class SOGoUtilities {
      
 	 */
 	public static HashMap getSyncTags(SOGoSyncSource source, int type, SyncContext context, String username , FunambolLogger log) {
-		Vector<String> folders;
-		HashMap h;
-			
-		h = new HashMap();
 		
 		// For now, we only support sync tags for calendars (events and tasks). So if we detect
 		// a contact source, we return immediately.
 		if (type == SOGoSyncSource.SOGO_CONTACT)
-			return h;
-		
-		folders = new Vector<String>();
-		
-		try {
-			ResultSet rs;
-			Statement s;
-			
-			// We first fetch the user's time zone
-			s = source.getDBConnection().createStatement();
- 			rs = s.executeQuery("SELECT c_settings FROM sogo_user_profile WHERE c_uid = '" + username + "'");
-		
-			if (rs.next()) {
-				String data;
-				
-				data = rs.getString(1);
-				
-				// We've got no c_settings, return immediately
-				if (data == null || data.length() == 0) {
-					rs.close();
-					s.close();
-					return h;
-				}
-				
-				try {
-					JSONObject json, jsonCalendar;
-					log.info("About to parse: " + data);	
-					json = (JSONObject)JSONValue.parse(data);
-					
-					if (json != null) {
-					jsonCalendar = (JSONObject)json.get("Calendar");
-					
-					if (jsonCalendar != null) {
-						String key, value;
-						Iterator it;
-						
-						json = (JSONObject)jsonCalendar.get("FolderSyncTags");
-						if (json != null) {
-							it = json.keySet().iterator();
-							while (it != null && it.hasNext()) {
-								key = it.next().toString();
-								value = (String)json.get(key);
-								h.put(value.toLowerCase(), key);
-							}
-						}
-						
-						json = (JSONObject)jsonCalendar.get("FolderSynchronize");
-						if (json != null) {
-							it = json.keySet().iterator();
-							while (it != null && it.hasNext()) {
-								folders.add(it.next().toString());
-							}
-						}	
-					}
-					}
-				} catch (Exception pe) {
-					log.error("Exception occured in getSyncTags(): " + pe.toString(), pe);
-				}
-			}
-			
-			// We cleanup what we have to sync, if necessary. We only keep
-			// the keys that are actually in "folders". 
-			h.values().retainAll(folders);
-			rs.close();
-			s.close();
-
-		} catch (Exception e) {
-			log.error("Exception occured in getSyncTags(): " + e.toString(), e);
-		}
+			return new HashMap();
 		
-		return h;
+		// We return a copy, as getSyncTagsLocation() drops the tags
+		// pointing to unknown locations
+		return source.getUserProfile(username).getSyncTags();
 	}
 	
 	/**
@@ -202,17 +131,12 @@ public class SOGoUtilities {
 		h = new HashMap();
 		
 		try {
-			String tag, c_path, c_path2, value;
+			String tag, value, location;
 			Vector<String> allTags;
 			Iterator tags;
-			ResultSet rs;
-			Statement s;
 			Set s1, s2;
 			int i;
 			
-			// We first fetch the user's time zone
-			s = source.getDBConnection().createStatement();
-			
 			s1 = sync_tags.keySet();
 			tags = s1.iterator();
 			
@@ -221,25 +145,12 @@ public class SOGoUtilities {
 				value = (String)sync_tags.get(tag);
 				
 				// The value we get is structured like: sogo1:Calendar/2230-4A609280-1-3C4950E0
-				i = value.indexOf(':');
-				c_path2 = value.substring(0, i);
-				c_path = value.substring(i+1);
-				
-				// We always skip the 'personal' folders (for the current user) and we only get the 'Appointment' collections for
-				// now as it's not possible to set tags on additional address books from SOGo Web.
-				if (c_path2.equalsIgnoreCase(context.getPrincipal().getUsername()))
-					rs = s.executeQuery("SELECT c_path, c_location FROM sogo_folder_info WHERE c_path4 != 'personal' AND c_folder_type = 'Appointment' AND c_path2 = '" + c_path2 + "'");
-				else
-					rs = s.executeQuery("SELECT c_path, c_location FROM sogo_folder_info WHERE c_folder_type = 'Appointment' AND c_path2 = '" + c_path2 + "'");
-
+				location = SOGoFolderLocations.getTagLocation(source, context.getPrincipal().getUsername(), value);
 				
-				while (rs.next()) {
-					if (rs.getString(1).endsWith(c_path)) {
-						log.info("getSyncTagsLocation - caching key = " + tag + " for location: " + rs.getString(2).substring(rs.getString(2).lastIndexOf('/')+1));
-						h.put(tag, rs.getString(2).substring(rs.getString(2).lastIndexOf('/')+1));
-					}
+				if (location != null) {
+					log.info("getSyncTagsLocation - caching key = " + tag + " for location: " + location);
+					h.put(tag, location);
 				}
-				rs.close();
 			}
 			
 			// We now clean all the crap in sync_tags - calendars might have been deleted 
@@ -252,8 +163,6 @@ public class SOGoUtilities {
 				if (!s2.contains(tag))
 					s1.remove(tag);
 			}
-			
-			s.close();
 
 		} catch (Exception e) {
 			log.error("Exception occured in getSyncTagsLocation(): " + e.toString(), e);
@@ -290,11 +199,21 @@ public class SOGoUtilities {
 			// For Oracle, we try to load big strings as CLOB. This works
 			// with the ojdbc14.jar (Oracle 10g 10.1.0.2.0) driver.
 			props.put("SetBigStringTryClob", "true");
+			
+			// We enable the driver's implicit statement cache
+			props.put("oracle.jdbc.implicitStatementCacheSize", "50");
 		} else if (s.equalsIgnoreCase("mysql")) {
 			s = "com.mysql.jdbc.Driver";
+			
+			// We let the driver cache the parsed statements of the connection
+			props.put("cachePrepStmts", "true");
+			props.put("prepStmtCacheSize", "250");
 		} 
 		else {
 			s = "org.postgresql.Driver";
+			
+			// Statements we reuse get server-side prepared after their third execution
+			props.put("prepareThreshold", "3");
 		}
 		
 		props.put("user", source.getDatabaseUsername());
@@ -431,15 +350,7 @@ public class SOGoUtilities {
 	 * @return
 	 */
 	public static boolean getDeviceUTC(SyncContext context) {
-		Sync4jDevice device;
-		
-		device = context.getPrincipal().getDevice();
-		
-		if (device.getCapabilities().getDevInf().getUTC() != null && device.getCapabilities().getDevInf().getUTC().booleanValue()) {
-			return true;
-		}
-		
-		return false;
+		return SOGoDeviceProfile.getProfile(context).isUTC();
 	}
 	
 	/**
@@ -497,87 +408,7 @@ public class SOGoUtilities {
 	 * @return
 	 */
 	public static int getPreferredItemType(SyncContext context, int syncSourceType, int way) {
-		ArrayList<String> l_types, l_versions;
-		ArrayList dataStores;
-		DataStore ds;
-		int i, type;
-		
-		// First, we get the supported types from our data store
-		// and also their version numbers.
-		try {
-			dataStores = context.getPrincipal().getDevice().getCapabilities().getDevInf().getDataStores();
-		} catch (Exception e) {
-			// We haven't been able to get any device, capabilities or data stores. We simply
-			// assume our connecting client only supports the SIF standard.
-			switch (syncSourceType) {
-			case SOGoSyncSource.SOGO_CONTACT:
-				return SOGoSyncSource.X_S4J_SIFC;
-			case SOGoSyncSource.SOGO_EVENT:
-				return SOGoSyncSource.X_S4J_SIFE;
-			default:
-				return SOGoSyncSource.X_S4J_SIFT;
-			}
-		}
-		
-		l_versions = new ArrayList<String>();
-		l_types = new ArrayList<String>();
-		
-		for (i = 0; i < dataStores.size(); i++) {
-			ds = (DataStore)dataStores.get(i);
-			
-			if (way == RX) {
-				l_types.add(ds.getRxPref().getCTType().trim());
-				l_versions.add(ds.getRxPref().getVerCT().trim());
-			} else {
-				l_types.add(ds.getTxPref().getCTType().trim());
-				l_versions.add(ds.getTxPref().getVerCT().trim());
-			}
-		}
-
-		// Based on the current sync source type, we return the most appropriate
-		// item's content type. This still is a guess as we have no way on linking
-		// the Device's capabilities with a current SyncSource.
-		switch (syncSourceType) {
-		case SOGoSyncSource.SOGO_EVENT:
-			if (l_types.contains("text/x-s4j-sife")) {
-				type = SOGoSyncSource.X_S4J_SIFE;
-			}
-			// Let's assume we've got text/x-vcalendar
-			else if (l_versions.contains("2.0")) {
-				type = SOGoSyncSource.VCALENDAR_VERSION_20;
-			}
-			else {
-				type = SOGoSyncSource.VCALENDAR_VERSION_10;
-			}
-			break;
-		case SOGoSyncSource.SOGO_TODO:
-			if (l_types.contains("text/x-s4j-sift")) {
-				type = SOGoSyncSource.X_S4J_SIFT;
-			}
-			// Let's assume we've got text/x-vcalendar
-			else if (l_versions.contains("2.0")) {
-				type = SOGoSyncSource.VCALENDAR_VERSION_20;
-			}
-			else {
-				type = SOGoSyncSource.VCALENDAR_VERSION_10;
-			}
-			break;
-		case SOGoSyncSource.SOGO_CONTACT:
-		default:
-			if (l_types.contains("text/x-s4j-sifc")) {
-				type = SOGoSyncSource.X_S4J_SIFC;
-			}
-			// Let's assume we've got text/x-vcard
-			else if (l_versions.contains("3.0")) {
-				type = SOGoSyncSource.VCARD_VERSION_30;
-			}
-			else {
-				type = SOGoSyncSource.VCARD_VERSION_21;
-			}
-			break;
-		}
-		
-		return type;
+		return SOGoDeviceProfile.getProfile(context).getPreferredItemType(syncSourceType, way);
 	}
 	
 	/**
@@ -611,58 +442,15 @@ public class SOGoUtilities {
 	 * @return
 	 */
 	public static TimeZone getUserTimeZone(SOGoSyncSource source, SyncContext context, FunambolLogger log) {
-		String tz;
-		
-		tz = null;
+		TimeZone tz;
 		
-		try {
-			ResultSet rs;
-			Statement s;
-			
-			// We first fetch the user's time zone
-			s = source.getDBConnection().createStatement();
- 			rs = s.executeQuery("SELECT c_defaults FROM sogo_user_profile WHERE c_uid = '" + context.getPrincipal().getUsername() + "'");
-		
-			if (rs.next()) {
-				String data;
-				Object o;
-
-				data = rs.getString(1); 
-				o = null;
-				
-				try {
-					JSONObject json;
-
-					json = (JSONObject)JSONValue.parse(data);
-					
-					try {
-						o = json.get("SOGoTimeZone");
-					} catch (Exception nfe) {					
-						o = json.get("TimeZone");
-					}
-					
-				} catch (Exception pe) {
-					log.error("Exception occured in getUserTimeZone(): " + pe.toString(), pe);
-				}
-				
-				if (o != null) {
-					tz = o.toString();
-				}
-			}
-			
-			rs.close();
-			s.close();
-
-		} catch (Exception e) {
-			log.error("Exception occured in getUserTimeZone(): " + e.toString(), e);
-		}
+		tz = source.getUserProfile(context.getPrincipal().getUsername()).getTimeZone();
 
 		if (tz == null) {
-			log.info("No timezone defined in SOGo for user: " + context.getPrincipal().getUsername());
 			return TimeZone.getTimeZone("GMT");
 		}
 		
-		return TimeZone.getTimeZone(tz);
+		return tz;
 	}
 
     /**
@@ -920,7 +708,7 @@ public class SOGoUtilities {
 			// It does NOT honor the X-FUNAMBOL-ALLDAY tag so we must do some magic
 			// here to make it believe it's an all-day event. Otherwise, the all-day
 			// event will span two days on the BlackBerry device.
-			if (isBlackBerry(context) && cc.isAllDay()) {
+			if (source.getDeviceProfile().isBlackBerry() && cc.isAllDay()) {
 				SimpleDateFormat formatter;
 				java.util.Date d;
 				String ss;
@@ -1144,32 +932,6 @@ public class SOGoUtilities {
 		return classification;
 	}
 	
-	/**
-	 * 
-	 * @param conn
-	 * @param table
-	 * @param c_name
-	 */
-	public static void updateContentVersion(Connection conn, String table, String c_name) throws Exception {
-		ResultSet rs;
-		Statement s;
-		int v;
-		
-		s = conn.createStatement();
-		rs = s.executeQuery("SELECT c_version FROM " + table + " WHERE c_name = '" + c_name + "'");
-		v = 1;
-		
-		if (rs.next()) {
-			v = rs.getInt(1);
-			v++;
-		}
-		
-		rs.close();
-		
-		s.executeUpdate("UPDATE " + table + " SET c_version = " + v + " WHERE c_name = '" + c_name + "'");
-		s.close();
-	}
-	
 	/**
 	 * 
 	 * @param item
@@ -1196,37 +958,56 @@ public class SOGoUtilities {
 	}
 	
 	public static boolean isIPhone(SyncContext context) {
-		Sync4jDevice device;
-		boolean b;
-
-		b = false;
-		
-		device = context.getPrincipal().getDevice();
-
-		if (device.getCapabilities().getDevInf().getMod() != null &&
-				device.getCapabilities().getDevInf().getMod().equalsIgnoreCase("iPhone")) {
-				b = true;
-			}
-		
-		return b;
+		return SOGoDeviceProfile.getProfile(context).isIPhone();
 	}
 	
 	public static boolean isBlackBerry(SyncContext context) {
-		Sync4jDevice device;
-		boolean b;
-
-		b = false;
-		
-		device = context.getPrincipal().getDevice();
-
-		if (device.getCapabilities().getDevInf().getMan() != null &&
-				device.getCapabilities().getDevInf().getMan().equalsIgnoreCase("Research In Motion")) {
-				b = true;
-			}
-		
-		return b;
+		return SOGoDeviceProfile.getProfile(context).isBlackBerry();
 	}
 	
+	// Properties we replace when converting vCards from v3 to v2.1. Properties
+	// with extra parameters must come first. BlackBerry devices and others
+	// don't get the WORK type on emails, iPhone OS devices do.
+	private static final String[][] VCARD_V21_REPLACEMENTS = {
+		{"VERSION:3.0", "VERSION:2.1"},
+		{"EMAIL;TYPE=INTERNET,WORK", "EMAIL;INTERNET"},
+		{"EMAIL;TYPE=INTERNET,HOME", "EMAIL;INTERNET;HOME"},
+		{"TEL;TYPE=VOICE,WORK", "TEL;VOICE;WORK"},
+		{"TEL;TYPE=VOICE,HOME", "TEL;VOICE;HOME"},
+		{"TEL;TYPE=WORK,FAX", "TEL;FAX;WORK"},
+		{"EMAIL;TYPE=WORK", "EMAIL;INTERNET"},
+		{"EMAIL;TYPE=HOME", "EMAIL;INTERNET;HOME"},
+		{"TEL;TYPE=WORK", "TEL;VOICE;WORK"},
+		{"TEL;TYPE=HOME", "TEL;VOICE;HOME"},
+		{"TEL;TYPE=CELL", "TEL;CELL"},
+		{"TEL;TYPE=FAX", "TEL;FAX;WORK"},
+		{"TEL;TYPE=PAGER", "TEL;PAGER"},
+		{"ADR;TYPE=WORK", "ADR;WORK"},
+		{"ADR;TYPE=HOME", "ADR;HOME"},
+		{"URL;TYPE=WORK", "URL;WORK"},
+		{"URL;TYPE=HOME", "URL;HOME"}
+	};
+	
+	private static final String[][] VCARD_V21_IPHONE_REPLACEMENTS = {
+		{"VERSION:3.0", "VERSION:2.1"},
+		{"EMAIL;TYPE=INTERNET,WORK", "EMAIL;INTERNET;WORK"},
+		{"EMAIL;TYPE=INTERNET,HOME", "EMAIL;INTERNET;HOME"},
+		{"TEL;TYPE=VOICE,WORK", "TEL;VOICE;WORK"},
+		{"TEL;TYPE=VOICE,HOME", "TEL;VOICE;HOME"},
+		{"TEL;TYPE=WORK,FAX", "TEL;FAX;WORK"},
+		{"EMAIL;TYPE=WORK", "EMAIL;INTERNET;WORK"},
+		{"EMAIL;TYPE=HOME", "EMAIL;INTERNET;HOME"},
+		{"TEL;TYPE=WORK", "TEL;VOICE;WORK"},
+		{"TEL;TYPE=HOME", "TEL;VOICE;HOME"},
+		{"TEL;TYPE=CELL", "TEL;CELL"},
+		{"TEL;TYPE=FAX", "TEL;FAX;WORK"},
+		{"TEL;TYPE=PAGER", "TEL;PAGER"},
+		{"ADR;TYPE=WORK", "ADR;WORK"},
+		{"ADR;TYPE=HOME", "ADR;HOME"},
+		{"URL;TYPE=WORK", "URL;WORK"},
+		{"URL;TYPE=HOME", "URL;HOME"}
+	};
+	
 	/**
 	 * This method is used to convert a vCard object from v3 to v2.1.
 	 * 
@@ -1239,40 +1020,18 @@ public class SOGoUtilities {
 		try {
 			ContactToVcard conv;
 			VcardParser p;
+			boolean iphone;
 			Contact c;
 			String s;							
 			int a, b;
 			
-			log.info("About to convert vCard (from v3 to v2.1): " + new String(bytes) + "\niPhone? " + isIPhone(context));
-			s = SOGoSanitizer.sanitizevCardInput(bytes, context, log);
-			s = s.replace("VERSION:3.0", "VERSION:2.1");
-			
-			// We replace properties with extra parameters
-			if (!isIPhone(context))
-				s = s.replace("EMAIL;TYPE=INTERNET,WORK", "EMAIL;INTERNET");      // BB or others
-			else
-				s = s.replace("EMAIL;TYPE=INTERNET,WORK", "EMAIL;INTERNET;WORK"); // iPhone OS
-			s = s.replace("EMAIL;TYPE=INTERNET,HOME", "EMAIL;INTERNET;HOME");
-			s = s.replace("TEL;TYPE=VOICE,WORK", "TEL;VOICE;WORK");
-			s = s.replace("TEL;TYPE=VOICE,HOME", "TEL;VOICE;HOME");
-			s = s.replace("TEL;TYPE=WORK,FAX", "TEL;FAX;WORK");
+			iphone = source.getDeviceProfile().isIPhone();
 			
-			// We replace properties with no extra parameters
-			if (!isIPhone(context))
-				s = s.replace("EMAIL;TYPE=WORK", "EMAIL;INTERNET");        // BB or others
-			else
-				s = s.replace("EMAIL;TYPE=WORK", "EMAIL;INTERNET;WORK");   // iPhone OS
+			if (log.isTraceEnabled())
+				log.trace("About to convert vCard (from v3 to v2.1): " + new String(bytes) + "\niPhone? " + iphone);
 			
-			s = s.replace("EMAIL;TYPE=HOME", "EMAIL;INTERNET;HOME");
-			s = s.replace("TEL;TYPE=WORK", "TEL;VOICE;WORK");
-			s = s.replace("TEL;TYPE=HOME", "TEL;VOICE;HOME");
-			s = s.replace("TEL;TYPE=CELL", "TEL;CELL");
-			s = s.replace("TEL;TYPE=FAX", "TEL;FAX;WORK");
-			s = s.replace("TEL;TYPE=PAGER", "TEL;PAGER");
-			s = s.replace("ADR;TYPE=WORK", "ADR;WORK");
-			s = s.replace("ADR;TYPE=HOME", "ADR;HOME");
-			s = s.replace("URL;TYPE=WORK", "URL;WORK");
-			s = s.replace("URL;TYPE=HOME", "URL;HOME");
+			// We sanitize the vCard and replace the properties in one pass
+			s = SOGoSanitizer.sanitizevCardInput(bytes, (iphone ? VCARD_V21_IPHONE_REPLACEMENTS : VCARD_V21_REPLACEMENTS), log);
 			
 			// We have to take care of the NOTE field which can have \r\n fields in it
 			// iPhone sends this:   NOTE;ENCODING=QUOTED-PRINTABLE;CHARSET=UTF-8:Line 1=0Aline 2=0Aline 3
@@ -1328,10 +1087,11 @@ public class SOGoUtilities {
 			}
 			
 			
-			log.info("Downgraded vCard: " + s); 
+			if (log.isTraceEnabled())
+				log.trace("Downgraded vCard: " + s); 
 
 			// iPhone supports UTF-8
-			if (isIPhone(context))
+			if (iphone)
 				return s.getBytes();
 			
 			// We must encode everything in QP
@@ -1340,7 +1100,9 @@ public class SOGoUtilities {
 			conv = new ContactToVcard(TimeZone.getTimeZone("GMT"), source.getDeviceCharset());
 			
 			s = conv.convert(c);
-			log.info("Encoded vCard: " + s);
+			
+			if (log.isTraceEnabled())
+				log.trace("Encoded vCard: " + s);
 			
 			return s.getBytes();
 
@@ -1466,50 +1228,4 @@ public class SOGoUtilities {
 
 		return null;
 	}
-
-	/**
-	 * 
-	 * @param content
-	 * @param tag
-	 * @param source
-	 * @param context
-	 * @param log
-	 * @return
-	 */
-	public static String removeTagFromContent(String content, String tag, SOGoSyncSource source, SyncContext context, FunambolLogger log) {
-		try {
-			VCalendarConverter converter;
-			VCalendar calendar;
-			CalendarContent cc;
-			ICalendarParser p;
-			String summary;
-			Calendar cal;
-            VComponentWriter writer;
-
-			p = new ICalendarParser(new ByteArrayInputStream(content.getBytes()));
-			calendar = p.ICalendar();
-
-			converter = new VCalendarConverter(getUserTimeZone(source, context, log), source.getDeviceCharset(), true);
-			cal = converter.vcalendar2calendar(calendar);
-
-			cc = cal.getCalendarContent();
-			summary = cc.getSummary().getPropertyValueAsString();
-			
-			tag = ("[" + tag + "]").toLowerCase();
-			if (summary.toLowerCase().startsWith(tag)) {
-				summary = summary.substring(tag.length()+1);
-			}
-			
-			cc.setSummary(new Property(summary));
-			
-			calendar = converter.calendar2vcalendar(cal, true);
-
-            writer = new VComponentWriter(VComponentWriter.NO_FOLDING);
-			return writer.toString(calendar);
-		} catch (Exception e) {
-			log.error("Exception occured in removeTagFromContent: " + e.toString(), e);
-		}
-		
-		return content;
-	}
 }
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.engine.source;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+
+import com.funambol.framework.logging.FunambolLogger;
+
+/**
+ * This class groups the writes made to the SOGo database during a sync
+ * session so that they are committed once per batch, instead of being
+ * committed item by item.
+ *
+ * The writes of an item form a unit. Units are executed right away, so that
+ * an item which can't be written is reported as such to the device, and so
+ * that our own queries see them. Each unit is executed under a savepoint -
+ * if one of its statements fails, only the unit is rolled back and the
+ * exception is thrown back to the caller. Units are committed when the
+ * batch is full and when the sync is committed or ends.
+ *
+ * If the database doesn't support savepoints, each unit is committed on
+ * its own, as before.
+ */
+public class SOGoWriteBatch {
+
+	// The default number of units per batch
+	public static final int DEFAULT_SIZE = 100;
+
+	// Private ivars
+	private Boolean _savepoints;
+	private int _size;
+	private int _pending;
+	private long _written;
+	private long _commits;
+	private long _failed;
+	private long _skipped;
+
+	/**
+	 * The writes of an item - each one being a template of
+	 * SOGoStatementCache, a table and the parameters to bind.
+	 */
+	public static class Unit {
+		private String _key;
+		private ArrayList<String> _templates;
+		private ArrayList<String> _tables;
+		private ArrayList<Object[]> _parameters;
+
+		public Unit(String key) {
+			_key = key;
+			_templates = new ArrayList<String>(4);
+			_tables = new ArrayList<String>(4);
+			_parameters = new ArrayList<Object[]>(4);
+		}
+
+		/**
+		 * Adds a write to the unit. Parameters can be strings,
+		 * integers, longs or null.
+		 *
+		 * @param template
+		 * @param table
+		 * @param parameters
+		 */
+		public void add(String template, String table, Object... parameters) {
+			_templates.add(template);
+			_tables.add(table);
+			_parameters.add(parameters);
+		}
+
+		public String getKey() {
+			return _key;
+		}
+	}
+
+	/**
+	 *
+	 * @param size the number of units after which the batch is committed
+	 */
+	public SOGoWriteBatch(int size) {
+		_size = (size < 1 ? 1 : size);
+		_savepoints = null;
+	}
+
+	/**
+	 *
+	 * @return true if no unit is waiting to be committed
+	 */
+	public boolean isEmpty() {
+		return _pending == 0;
+	}
+
+	/**
+	 * Executes the writes of the unit, committing the batch if it's full.
+	 *
+	 * @param unit
+	 * @param source
+	 * @param log
+	 * @throws SQLException if the unit couldn't be written - nothing of it
+	 *         is left in the database, the other units of the batch are kept
+	 */
+	public void add(Unit unit, SOGoSyncSource source, FunambolLogger log) throws SQLException {
+		Connection connection;
+		Savepoint savepoint;
+		PreparedStatement s;
+		int i;
+
+		connection = source.getDBConnection();
+
+		if (_savepoints == null)
+			_savepoints = Boolean.valueOf(connection.getMetaData().supportsSavepoints());
+
+		savepoint = (_savepoints.booleanValue() ? connection.setSavepoint() : null);
+
+		try {
+			for (i = 0; i < unit._templates.size(); i++) {
+				s = source.prepareStatement(unit._templates.get(i), unit._tables.get(i));
+				bind(s, unit._parameters.get(i));
+				s.executeUpdate();
+			}
+		} catch (SQLException e) {
+			_failed++;
+			log.error("Exception occured while writing item " + unit.getKey() + ": " + e.toString(), e);
+			rollback(connection, savepoint, log);
+			throw e;
+		}
+
+		_pending++;
+
+		if (savepoint == null || _pending >= _size)
+			flush(source, log);
+	}
+
+	/**
+	 * Commits the units written since the last commit.
+	 *
+	 * @param source
+	 * @param log
+	 */
+	public void flush(SOGoSyncSource source, FunambolLogger log) {
+		if (_pending == 0)
+			return;
+
+		try {
+			source.getDBConnection().commit();
+
+			_written += _pending;
+			_commits++;
+
+			if (_pending > 1)
+				log.info("Committed " + _pending + " items");
+		} catch (SQLException e) {
+			log.error("Exception occured in SOGoWriteBatch.flush(), " + _pending + " items were lost: " + e.toString(), e);
+			source.checkLocations(e);
+			rollback(source.getDBConnection(), null, log);
+		}
+
+		_pending = 0;
+	}
+
+	/**
+	 * Rolls back to the savepoint or, if there's none, the whole transaction.
+	 */
+	private void rollback(Connection connection, Savepoint savepoint, FunambolLogger log) {
+		try {
+			if (savepoint != null) {
+				connection.rollback(savepoint);
+			} else {
+				connection.rollback();
+				_failed += _pending;
+				_pending = 0;
+			}
+		} catch (SQLException e) {
+			log.error("Exception occured in SOGoWriteBatch.rollback(): " + e.toString(), e);
+		}
+	}
+
+	private static void bind(PreparedStatement s, Object[] parameters) throws SQLException {
+		int i;
+
+		for (i = 0; i < parameters.length; i++) {
+			if (parameters[i] instanceof Integer)
+				s.setInt(i+1, ((Integer)parameters[i]).intValue());
+			else if (parameters[i] instanceof Long)
+				s.setLong(i+1, ((Long)parameters[i]).longValue());
+			else
+				s.setString(i+1, (String)parameters[i]);
+		}
+	}
+
+	/**
+	 * Counts the writes skipped because the item was unchanged.
+	 */
+	public void skip() {
+		_skipped++;
+	}
+
+	public String toString() {
+		return "written: " + _written + " commits: " + _commits + " failed: " + _failed + " skipped: " + _skipped;
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2007-2012 Inverse inc.
+ *
+ * Author: Ludovic Marcotte <lmarcotte@inverse.ca>
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation; either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program; if not, write to the Free Software
+ *  Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package ca.inverse.sogo.security;
+
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import ca.inverse.sogo.engine.source.SOGoCache;
+
+/**
+ * This class caches the outcome of the verification of credentials by SOGo,
+ * so that a device synchronizing several sources in a row doesn't cost us
+ * one HTTP request per session.
+ *
+ * Credentials are never kept in memory - entries are keyed by a salted
+ * SHA-256 hash of the username and of the credentials. The salt is random
+ * and only lives as long as the process.
+ */
+public class SOGoCredentialCache {
+
+	// Cache settings
+	private static final int CACHE_SIZE = 5000;
+
+	// Private ivars
+	private SOGoCache<String, Boolean> _results;
+	private byte[] _salt;
+
+	public SOGoCredentialCache() {
+		_results = new SOGoCache<String, Boolean>(CACHE_SIZE, 0);
+		_salt = new byte[16];
+		new SecureRandom().nextBytes(_salt);
+	}
+
+	/**
+	 *
+	 * @param username
+	 * @param credentials
+	 * @return Boolean.TRUE or Boolean.FALSE if the credentials were recently
+	 *         verified, null if they have to be verified again
+	 */
+	public Boolean get(String username, String credentials) {
+		return _results.get(getKey(username, credentials));
+	}
+
+	/**
+	 * Remembers the outcome of the verification of the credentials.
+	 *
+	 * @param username
+	 * @param credentials
+	 * @param valid
+	 * @param ttl in milliseconds - nothing is cached if it's not positive
+	 */
+	public void put(String username, String credentials, boolean valid, long ttl) {
+		if (ttl <= 0)
+			return;
+
+		_results.put(getKey(username, credentials), Boolean.valueOf(valid), ttl);
+	}
+
+	public void clear() {
+		_results.clear();
+	}
+
+	private String getKey(String username, String credentials) {
+		StringBuffer key;
+		MessageDigest md;
+		byte[] digest;
+		int i;
+
+		try {
+			md = MessageDigest.getInstance("SHA-256");
+			md.update(_salt);
+			md.update(username.getBytes("UTF-8"));
+			md.update((byte)0);
+			md.update(credentials.getBytes("UTF-8"));
+			digest = md.digest();
+		} catch (Exception e) {
+			// SHA-256 and UTF-8 are always available
+			throw new IllegalStateException(e.toString());
+		}
+
+		key = new StringBuffer(digest.length * 2);
+
+		for (i = 0; i < digest.length; i++) {
+			key.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			key.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+
+		return key.toString();
+	}
+}
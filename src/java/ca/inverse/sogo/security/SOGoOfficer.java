@@ -38,6 +38,7 @@ import com.funambol.framework.logging.Sync4jLogger;
 import com.funambol.framework.filter.WhereClause;
 import com.funambol.server.config.Configuration;
 import com.funambol.server.admin.UserManager;
+import ca.inverse.sogo.engine.source.SOGoCache;
 import ca.inverse.sogo.engine.source.SOGoUser;
 //import org.apache.jackrabbit.webdav.client.methods.*;
 //import java.io.ByteArrayInputStream;
@@ -47,19 +48,57 @@ import ca.inverse.sogo.engine.source.SOGoUser;
 //import org.apache.jackrabbit.webdav.xml.*;
 //import org.w3c.dom.*;
 //import javax.xml.parsers.*;
-import java.net.*;
+import java.io.IOException;
+import java.io.InputStream;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.EntityEnclosingMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.StringRequestEntity;
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.apache.commons.httpclient.util.URIUtil;
 public class SOGoOfficer implements Officer, java.io.Serializable {
 
 	// Static variables
 	private static final long serialVersionUID = 1L;
 	private static final String DEFAULT_USER_ROLE = "sync_user";
 
+	// The ways we can check credentials
+	public static final String PROBE_FREEBUSY = "freebusy";
+	public static final String PROBE_HEAD = "head";
+	public static final String PROBE_PROPFIND = "propfind";
+
+	private static final String PROPFIND_BODY = "<?xml version=\"1.0\" encoding=\"utf-8\"?>" +
+		"<D:propfind xmlns:D=\"DAV:\"><D:prop><D:resourcetype/></D:prop></D:propfind>";
+
+	// The outcome of recent credential verifications, shared by all officers
+	private static SOGoCredentialCache _credentials = new SOGoCredentialCache();
+
+	// The Funambol users and principals we know exist. They are never
+	// modified once created, so we keep them for a day.
+	private static final int KNOWN_CACHE_SIZE = 10000;
+	private static final long KNOWN_CACHE_TTL = 86400000;
+	private static SOGoCache<String, Boolean> _known_users = new SOGoCache<String, Boolean>(KNOWN_CACHE_SIZE, KNOWN_CACHE_TTL);
+	private static SOGoCache<String, Long> _known_principals = new SOGoCache<String, Long>(KNOWN_CACHE_SIZE, KNOWN_CACHE_TTL);
+
 	// Private ivars
     private Logger _log = Sync4jLogger.getLogger();
     private UserManager _userManager = null;
     private PersistentStore _ps  = null;
     private String _host = null;
     private String _port = null;
+    private long _credentialsTTL = 60000;
+    private long _failedCredentialsTTL = 10000;
+    private int _connectTimeout = 10000;
+    private int _readTimeout = 30000;
+    private String _scheme = "http";
+    private String _basePath = "/SOGo/dav/";
+    private String _probe = PROBE_FREEBUSY;
+    private int _maxConnections = 20;
+    private transient HttpClient _client = null;
 
     /**
      * 
@@ -99,6 +138,113 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
     	this._port = p;
     }
 
+    /**
+     * 
+     * @return how long, in milliseconds, valid credentials are remembered
+     */
+    public long getCredentialsTTL() {
+        return _credentialsTTL;
+    }
+
+    public void setCredentialsTTL(long ttl) {
+        this._credentialsTTL = ttl;
+    }
+
+    /**
+     * 
+     * @return how long, in milliseconds, credentials rejected by SOGo are remembered
+     */
+    public long getFailedCredentialsTTL() {
+        return _failedCredentialsTTL;
+    }
+
+    public void setFailedCredentialsTTL(long ttl) {
+        this._failedCredentialsTTL = ttl;
+    }
+
+    /**
+     * 
+     * @return the connect timeout, in milliseconds, of the requests made to SOGo
+     */
+    public int getConnectTimeout() {
+        return _connectTimeout;
+    }
+
+    public void setConnectTimeout(int timeout) {
+        this._connectTimeout = timeout;
+        updateHttpClient();
+    }
+
+    /**
+     * 
+     * @return the read timeout, in milliseconds, of the requests made to SOGo
+     */
+    public int getReadTimeout() {
+        return _readTimeout;
+    }
+
+    public void setReadTimeout(int timeout) {
+        this._readTimeout = timeout;
+        updateHttpClient();
+    }
+
+    /**
+     * 
+     * @return the scheme used to reach SOGo - http or https
+     */
+    public String getScheme() {
+        return _scheme;
+    }
+
+    public void setScheme(String scheme) {
+        this._scheme = scheme;
+    }
+
+    /**
+     * 
+     * @return the path of the DAV root of SOGo, such as /SOGo/dav/
+     */
+    public String getBasePath() {
+        return _basePath;
+    }
+
+    public void setBasePath(String path) {
+        if (!path.startsWith("/"))
+            path = "/" + path;
+
+        if (!path.endsWith("/"))
+            path = path + "/";
+
+        this._basePath = path;
+    }
+
+    /**
+     * 
+     * @return how credentials are checked - PROBE_FREEBUSY (a GET of the
+     *         user's freebusy.ifb), PROBE_HEAD (a HEAD of the user's DAV root)
+     *         or PROBE_PROPFIND (a PROPFIND of depth 0 of the user's DAV root)
+     */
+    public String getProbe() {
+        return _probe;
+    }
+
+    public void setProbe(String probe) {
+        this._probe = probe;
+    }
+
+    /**
+     * 
+     * @return the maximum number of connections kept open to SOGo
+     */
+    public int getMaxConnections() {
+        return _maxConnections;
+    }
+
+    public void setMaxConnections(int max) {
+        this._maxConnections = max;
+        updateHttpClient();
+    }
+
     /**
      * 
      */
@@ -223,16 +369,35 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
      * @return
      */
     private boolean checkSOGoCredentials(String host, String username, String credentials, SOGoUser user) {
+    	Boolean cached;
+
+    	cached = _credentials.get(username, credentials);
+
+    	if (cached != null) {
+    		_log.info("Using cached verification of the credentials of " + username + ": " + (cached.booleanValue() ? "valid" : "invalid"));
+
+    		if (cached.booleanValue())
+    			user.setUserID(username);
+
+    		return cached.booleanValue();
+    	}
+
     	try {
-    		URLConnection conn;
-    		URL url;
-        	// host has the following format:  sogo.acme.com
-        	// We have to rebuild the URL using: http://sogo.acme.com/SOGo/dav/<username>/freebusy.ifb
-    		//url = new URL("http://" + host + ":8999/SOGo/dav/" + username + "/freebusy.ifb");    		
-    	    url = new URL("http", host, Integer.parseInt(_port), "/SOGo/dav/" + username + "/freebusy.ifb");
-    		conn = url.openConnection();
-    	    conn.setRequestProperty("Authorization", "Basic " + credentials);
-    	    conn.getInputStream();
+    		int code;
+
+    	    code = probe(host, username, credentials);
+
+    	    // A PROPFIND returns 207 (Multi-Status)
+    	    if (code < 200 || code > 299) {
+    	    	// Only a rejection of the credentials is remembered - other
+    	    	// errors are most likely transient
+    	    	if (code == HttpStatus.SC_UNAUTHORIZED || code == HttpStatus.SC_FORBIDDEN)
+    	    		_credentials.put(username, credentials, false, _failedCredentialsTTL);
+
+    	    	throw new IOException("Server returned HTTP response code: " + code + " for user: " + username);
+    	    }
+
+    	    _credentials.put(username, credentials, true, _credentialsTTL);
     		
     		//ClassLoader savedClassLoader = Thread.currentThread().getContextClassLoader();
     		//Thread.currentThread().setContextClassLoader( this.getClass().getClassLoader() );
@@ -297,6 +462,129 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
     	
     	return false;
     }
+
+    /**
+     * Sends the request used to check the credentials to SOGo.
+     * 
+     * @param host
+     * @param username
+     * @param credentials
+     * @return the HTTP status code
+     * @throws IOException
+     */
+    private int probe(String host, String username, String credentials) throws IOException {
+    	HttpMethodBase method;
+    	String url;
+    	int code;
+
+    	// host has the following format:  sogo.acme.com
+    	// We have to rebuild the URL using: http://sogo.acme.com/SOGo/dav/<username>/
+    	url = _scheme + "://" + host;
+
+    	if (_port != null && _port.trim().length() > 0)
+    		url = url + ":" + _port.trim();
+
+    	url = url + _basePath + URIUtil.encodePath(username, "UTF-8") + "/";
+
+    	if (PROBE_PROPFIND.equalsIgnoreCase(_probe)) {
+    		EntityEnclosingMethod propfind;
+
+    		propfind = new PropFindMethod(url);
+    		propfind.setRequestHeader("Depth", "0");
+    		propfind.setRequestEntity(new StringRequestEntity(PROPFIND_BODY, "text/xml", "utf-8"));
+    		method = propfind;
+    	} else if (PROBE_HEAD.equalsIgnoreCase(_probe)) {
+    		method = new HeadMethod(url);
+    	} else {
+    		method = new GetMethod(url + "freebusy.ifb");
+    	}
+
+    	method.setRequestHeader("Authorization", "Basic " + credentials);
+    	method.getParams().setSoTimeout(_readTimeout);
+
+    	try {
+    		code = getHttpClient().executeMethod(method);
+
+    		// We read what's left of the response so that the
+    		// connection can be kept alive and reused
+    		drain(method.getResponseBodyAsStream());
+    	} finally {
+    		method.releaseConnection();
+    	}
+
+    	return code;
+    }
+
+    /**
+     * 
+     * The client, and the connection manager pooling its connections, are
+     * created once and live as long as the officer - only one is ever
+     * created per officer, so there's no manager to shut down.
+     * 
+     * @return the client used to reach SOGo
+     */
+    private synchronized HttpClient getHttpClient() {
+    	if (_client == null) {
+    		_client = new HttpClient(new MultiThreadedHttpConnectionManager());
+    		updateHttpClient();
+    	}
+
+    	return _client;
+    }
+
+    /**
+     * Applies our timeouts and connection limit to the client, if it was
+     * already created. The connection manager reads them whenever it opens
+     * or hands out a connection, so we don't have to replace it - and to
+     * abort the requests in progress - when they change.
+     */
+    private synchronized void updateHttpClient() {
+    	HttpConnectionManagerParams params;
+
+    	if (_client == null)
+    		return;
+
+    	params = _client.getHttpConnectionManager().getParams();
+    	params.setConnectionTimeout(_connectTimeout);
+    	params.setSoTimeout(_readTimeout);
+    	params.setDefaultMaxConnectionsPerHost(_maxConnections);
+    	params.setMaxTotalConnections(_maxConnections);
+    }
+
+    /**
+     * Reads the stream until its end and closes it.
+     * 
+     * @param in
+     * @throws IOException
+     */
+    private static void drain(InputStream in) throws IOException {
+    	byte[] buf;
+
+    	if (in == null)
+    		return;
+
+    	buf = new byte[4096];
+
+    	try {
+    		while (in.read(buf) != -1)
+    			;
+    	} finally {
+    		in.close();
+    	}
+    }
+
+    /**
+     * The PROPFIND method of WebDAV.
+     */
+    private static class PropFindMethod extends EntityEnclosingMethod {
+    	public PropFindMethod(String uri) {
+    		super(uri);
+    	}
+
+    	public String getName() {
+    		return "PROPFIND";
+    	}
+    }
     
 
     /**
@@ -309,10 +597,20 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
     throws PersistentStoreException {
         Sync4jUser[] users;
         WhereClause wc;
+
+        if (_known_users.get(userName) != null) {
+            return true;
+        }
+
         String value[] = new String[]{userName};
         wc = new WhereClause("username", value, WhereClause.OPT_EQ, true);
         users = _userManager.getUsers(wc);
         _log.info("User with username " + userName + (users.length > 0 ? " exists" : " does not exist"));        
+
+        if (users.length > 0) {
+            _known_users.put(userName, Boolean.TRUE);
+        }
+
         return users.length>0;
     }
 
@@ -329,6 +627,7 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
         user.setPassword(password);
         user.setRoles(new String[] {DEFAULT_USER_ROLE});
         _userManager.insertUser(user);
+        _known_users.put(userName, Boolean.TRUE);
         _log.info("Created username '" + userName + "'");
     }
 
@@ -341,11 +640,17 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
      */
     private boolean existsPrincipal(String userName, String deviceId)
     throws PersistentStoreException {
-        Principal principal;
+        Sync4jPrincipal principal;
+
+        if (_known_principals.get(getPrincipalKey(userName, deviceId)) != null) {
+            return true;
+        }
+
         try {
             principal = Sync4jPrincipal.createPrincipal(userName, deviceId);
             _ps.read(principal);
             _log.info("Principal for " + userName + ":" + deviceId +" found!");
+            _known_principals.put(getPrincipalKey(userName, deviceId), Long.valueOf(principal.getId()));
             return true;
         } catch(NotFoundException e) {
         	_log.info("Principal for " + userName + ":" + deviceId +" not found");
@@ -377,7 +682,18 @@ public class SOGoOfficer implements Officer, java.io.Serializable {
             }
             throw e;
         }
+        _known_principals.put(getPrincipalKey(userName, deviceId), Long.valueOf(principal.getId()));
         return principal.getId();
     }
+
+    /**
+     * 
+     * @param userName
+     * @param deviceId
+     * @return the key of the principal in the cache of known principals
+     */
+    private static String getPrincipalKey(String userName, String deviceId) {
+        return userName + "/" + deviceId;
+    }
 }
 